@@ -25,7 +25,7 @@ import java.awt.Point;
 import java.awt.Window;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowFocusListener;
-import java.io.File;
+import java.nio.file.Path;
 
 import javax.swing.JDialog;
 
@@ -35,7 +35,7 @@ public class BDDropdown extends JDialog {
 	private final Window parent;
 	private final BDFileContainer files;
 	
-	public BDDropdown(final BDWindow bdWindow, final Window parent, final File folder) {
+	public BDDropdown(final BDWindow bdWindow, final Window parent, final Path folder) {
 		this.parent = parent;
 		
 		setType(Type.POPUP);
@@ -79,7 +79,7 @@ public class BDDropdown extends JDialog {
 	
 	@Override
 	public String toString() {
-		return "BDDropdown[" + files.folder + "]";
+		return "BDDropdown[" + files.getFolder() + "]";
 	}
 	
 	protected boolean hasParent(final BDDropdown dropdown) {
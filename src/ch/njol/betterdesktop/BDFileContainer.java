@@ -41,9 +41,17 @@ import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
@@ -57,11 +65,11 @@ import javax.swing.TransferHandler;
 
 import org.eclipse.jdt.annotation.Nullable;
 
-public class BDFileContainer extends JPanel {
+public class BDFileContainer extends JPanel implements DesktopModel.Listener {
 	
 	public final BDWindow window;
 	
-	public File folder;
+	private Path folder;
 	
 	public final static int GAP_X = 5, GAP_Y = 5;
 	
@@ -69,7 +77,7 @@ public class BDFileContainer extends JPanel {
 	
 	private final int maxFiles;
 	
-	public BDFileContainer(final BDWindow window, final File folder, final boolean useFolder, final int maxFiles) {
+	public BDFileContainer(final BDWindow window, final Path folder, final boolean useFolder, final int maxFiles) {
 		this.window = window;
 		this.folder = folder;
 		this.useFolder = useFolder;
@@ -80,10 +88,57 @@ public class BDFileContainer extends JPanel {
 		setBackground(null);
 		setOpaque(false);
 		
-		reload();
+		// windows are only created after their folder has been read, and dropdowns need to know their size right away, so this reads the folder on the current thread
+		apply(FolderModel.read(Main.getDirectoryIndex(), folder, useFolder, maxFiles, FolderModel.nextVersion()));
 		
 	}
 	
+	public Path getFolder() {
+		return folder;
+	}
+	
+	/**
+	 * @return The priority with which the icons in this container are loaded: higher if it's shown, and highest if it's the contents of a group window rather than of a dropdown
+	 */
+	public IconLoader.Priority getIconPriority() {
+		if (!isShowing())
+			return IconLoader.Priority.PREFETCH;
+		return window.files == this ? IconLoader.Priority.VISIBLE : IconLoader.Priority.DROPDOWN;
+	}
+	
+	/**
+	 * Shows the contents of another folder. Icons of files with the same name are kept until the new folder has been read.
+	 */
+	public void setFolder(final Path folder) {
+		final Path oldFolder = this.folder;
+		this.folder = folder;
+		changedFiles.clear();
+		applied = null;
+		if (isDisplayable())
+			DesktopModel.update(m -> m.withoutFolder(oldFolder));
+		reload();
+	}
+	
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		DesktopModel.addListener(this);
+		final FolderModel applied = this.applied;
+		final FolderModel published = DesktopModel.consumed().getFolder(folder);
+		if (published != null && (applied == null || published.version > applied.version))
+			apply(published);
+		else if (applied != null)
+			DesktopModel.update(m -> m.withFolder(applied));
+	}
+	
+	@Override
+	public void removeNotify() {
+		super.removeNotify();
+		DesktopModel.removeListener(this);
+		final Path folder = this.folder;
+		DesktopModel.update(m -> m.withoutFolder(folder));
+	}
+	
 	public final TransferHandler transferHandler = new TransferHandler(null) {
 		@Override
 		public int getSourceActions(final JComponent c) {
@@ -93,7 +148,7 @@ public class BDFileContainer extends JPanel {
 		
 		@Override
 		protected @Nullable Transferable createTransferable(final JComponent c) {
-			return c instanceof FileIcon ? new FileListTransferable(Arrays.asList(((FileIcon) c).file), new ImageIcon(((FileIcon) c).icon)) : null;
+			return c instanceof FileIcon ? new FileListTransferable(Arrays.asList(((FileIcon) c).file.toFile()), new ImageIcon(((FileIcon) c).getIcon())) : null;
 		}
 		
 		// this doesn't seem to work
@@ -109,7 +164,7 @@ public class BDFileContainer extends JPanel {
 		@Override
 		public void exportAsDrag(final JComponent comp, final InputEvent e, final int action) {
 			if (comp instanceof FileIcon) {
-				final Image icon = ((FileIcon) comp).icon;
+				final Image icon = ((FileIcon) comp).getIcon();
 				if (icon != null) {
 					setDragImage(icon);
 					setDragImageOffset(new Point(icon.getWidth(null), icon.getHeight(null)));
@@ -140,17 +195,34 @@ public class BDFileContainer extends JPanel {
 					final boolean copy = dtde.getDropAction() == DnDConstants.ACTION_COPY;
 					final List<File> failed = new ArrayList<>();
 					IOException lastException = null;
+					// update this container directly instead of waiting for the file watcher.
+					// the watcher only has to be told to ignore the changes if this is a window's container, as dropdowns are not watched.
+					// moved files still have to be removed from where they came from, which is left to the file watcher.
+					final boolean isWatched = BDFileContainer.this == window.files;
+					final ChangeSet.Builder changes = new ChangeSet.Builder();
+					final DirectoryIndex index = Main.getDirectoryIndex();
 					for (final File f : files) {
+						final Path target = folder.resolve(f.getName());
 						try {
-							if (copy)
-								Files.copy(f.toPath(), folder.toPath().resolve(f.getName()));
-							else
-								Files.move(f.toPath(), folder.toPath().resolve(f.getName()));
+							if (isWatched) {
+								if (copy)
+									WriteJournal.INSTANCE.copy(f.toPath(), target);
+								else
+									WriteJournal.INSTANCE.moveInto(f.toPath(), target);
+							} else if (copy) {
+								Utils.copyRecursively(f.toPath(), target);
+							} else {
+								Files.move(f.toPath(), target);
+							}
+							index.changed(target);
+							index.changed(f.toPath());
+							changes.add(index.toIndexPath(target), StandardWatchEventKinds.ENTRY_CREATE); // update() expects canonical paths, like the watcher sends
 						} catch (final IOException e) {
 							failed.add(f);
 							lastException = e;
 						}
 					}
+					update(changes.build());
 					if (lastException != null) {
 						final IOException le = lastException;
 						SwingUtilities.invokeLater(() -> {
@@ -181,7 +253,7 @@ public class BDFileContainer extends JPanel {
 					@SuppressWarnings("unchecked")
 					final List<File> files = (List<File>) dtde.getTransferable().getTransferData(DataFlavor.javaFileListFlavor);
 					for (final File f : files) {
-						if (!f.getParentFile().equals(folder))
+						if (!f.toPath().getParent().equals(folder))
 							return; // accept
 					}
 					dtde.rejectDrag();
@@ -208,76 +280,159 @@ public class BDFileContainer extends JPanel {
 		}, true));
 	}
 	
+	/**
+	 * Reads the folder in the background and updates the icons afterwards.
+	 */
 	public void reload() {
+		refresh(Collections.emptySet());
+	}
+	
+	/**
+	 * Updates only the icons of files affected by the given changes. Changes deeper inside this folder update the icon of the file or folder they happened in.
+	 * The folder is read in the background, and the icons are updated afterwards.
+	 */
+	public void update(final ChangeSet changes) {
+		if (changes.incomplete) {
+			reload();
+			return;
+		}
+		final Path folderPath = Main.getDirectoryIndex().toIndexPath(folder); // changes are reported with canonical paths
+		final Set<Path> affected = new HashSet<>();
+		for (final Path p : changes.all()) {
+			if (p.startsWith(folderPath) && !p.equals(folderPath))
+				affected.add(folder.resolve(folderPath.relativize(p).getName(0).toString()));
+		}
+		if (affected.isEmpty())
+			return;
+		System.out.println("Updating " + affected.size() + " file(s) in file container for " + folder);
+		refresh(affected);
+	}
+	
+	// only accessed from the EDT
+	/**
+	 * Files that changed, and the version of the folder model that will first reflect the change
+	 */
+	private final Map<Path, Long> changedFiles = new HashMap<>();
+	private @Nullable FolderModel applied = null;
+	
+	private void refresh(final Set<Path> changed) {
+		final long version = FolderModel.nextVersion();
+		for (final Path f : changed)
+			changedFiles.put(f, version);
+		final Path folder = this.folder;
+		Main.threadPool.execute(() -> {
+			final FolderModel model = FolderModel.read(Main.getDirectoryIndex(), folder, useFolder, maxFiles, version);
+			DesktopModel.update(m -> m.withFolder(model));
+		});
+	}
+	
+	@Override
+	public void modelChanged(final DesktopModel oldModel, final DesktopModel newModel) {
+		final FolderModel model = newModel.getFolder(folder);
+		if (model != null && model != oldModel.getFolder(folder))
+			apply(model);
+		for (final Component c : getComponents()) {
+			if (c instanceof FileIcon) {
+				final Path fileToRun = ((FileIcon) c).fileToRun;
+				if (newModel.getIcon(fileToRun) != oldModel.getIcon(fileToRun))
+					c.repaint();
+			}
+		}
+	}
+	
+	private @Nullable JLabel dots = null;
+	
+	/**
+	 * Brings the shown icons in line with the given model. Icons of files that are still there and still run the same file are kept (and refreshed if the file changed),
+	 * so that only new files and files with a new run target get a new icon.
+	 * Kept icons are only reordered, never removed and added again, which would restart loading their image and drop their open dropdown.
+	 */
+	private void apply(final FolderModel model) {
+		final FolderModel applied = this.applied;
+		if (!model.folder.equals(folder) // moved in the meantime
+				|| applied != null && applied.version >= model.version)
+			return;
+		this.applied = model;
 		
-		final File[] contents = folder.listFiles();
+		// the components that should be shown, in order
+		final Map<Path, FileIcon> existing = new HashMap<>();
+		for (final Component c : getComponents()) {
+			if (c instanceof FileIcon)
+				existing.put(((FileIcon) c).file, (FileIcon) c);
+		}
+		final List<Component> wanted = new ArrayList<>();
+		int created = 0;
+		for (final FolderModel.Item item : model.items) {
+			final FileIcon old = existing.get(item.file);
+			if (old != null && old.fileToRun.equals(item.fileToRun)) {
+				if (changedFiles.containsKey(item.file))
+					old.refresh();
+				wanted.add(old);
+			} else {
+				wanted.add(new FileIcon(this, item.file, item.fileToRun));
+				created++;
+			}
+		}
+		if (model.truncated)
+			wanted.add(getDots());
+		changedFiles.values().removeIf(v -> v <= model.version);
 		
-		if (contents != null) {
-			Arrays.sort(contents);
-			
-			// find out if anything changed at all, and exit early if nothing did
-			final Component[] components = getComponents();
-			if (contents.length == components.length || components.length == maxFiles && contents.length > maxFiles) {
-				boolean changed = false;
-				for (int i = 0; i < contents.length; i++) {
-					final File f = contents[i];
-					final Component c = i < components.length ? components[i] : null;
-					if (!(c instanceof FileIcon)) {
-						if (c instanceof JLabel && ((JLabel) c).getText().equals("...") && i == maxFiles - 1 && contents.length > maxFiles)
-							return;
-						changed = true;
-						break;
-					}
-					final FileIcon fi = (FileIcon) c;
-					if (!f.equals(fi.file) || !FileIcon.getFileToRun(f, useFolder).equals(fi.fileToRun)) {
-						changed = true;
-						break;
-					}
-				}
-				if (!changed)
-					return;
+		// remove unwanted components, then add new ones and move kept ones into place
+		boolean modified = false;
+		final Set<Component> wantedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+		wantedSet.addAll(wanted);
+		for (int i = getComponentCount() - 1; i >= 0; i--) {
+			if (!wantedSet.contains(getComponent(i))) {
+				remove(i);
+				modified = true;
 			}
-			
-			System.out.println("Updating file container for " + folder);
-			
-			removeAll();
-			for (int i = 0; i < contents.length; i++) {
-				final File f = contents[i];
-				if (f.isHidden() || f.getName().startsWith("."))
-					continue;
-				add(new FileIcon(this, f, useFolder));
-				if (i + 1 == maxFiles && i != contents.length - 1) {
-					final JLabel dots = new JLabel("...");
-					add(dots);
-					dots.setForeground(Color.white);
-					dots.setBackground(null);
-					dots.setFont(dots.getFont().deriveFont(Font.BOLD, 20f));
-					dots.setMinimumSize(new Dimension(FileIcon.SIZE_X, FileIcon.SIZE_Y));
-					dots.setPreferredSize(dots.getMinimumSize());
-					dots.setVerticalAlignment(SwingConstants.CENTER);
-					dots.setHorizontalAlignment(SwingConstants.CENTER);
-					dots.setToolTipText("Too many files; click to open folder in explorer.");
-					dots.addMouseListener(new MouseAdapter() {
-						@Override
-						public void mouseClicked(final MouseEvent e) {
-							if (e.getButton() == 1) {
-								try {
-									Desktop.getDesktop().open(folder);
-								} catch (final IOException e1) {
-									e1.printStackTrace();
-								}
-							}
-						}
-					});
-					break;
-				}
+		}
+		for (int i = 0; i < wanted.size(); i++) {
+			final Component c = wanted.get(i);
+			if (c.getParent() != this) {
+				add(c, i);
+				modified = true;
+			} else if (getComponent(i) != c) {
+				setComponentZOrder(c, i); // unlike add(), doesn't remove and add the component again
+				modified = true;
 			}
-		} else {
-			removeAll();
 		}
 		
-		revalidate();
-		repaint();
+		if (modified) {
+			System.out.println("Updated file container for " + folder + " (" + created + " new icon(s))");
+			revalidate();
+			repaint();
+			if (window.files == this)
+				window.filesChanged();
+		}
+	}
+	
+	private JLabel getDots() {
+		JLabel dots = this.dots;
+		if (dots != null)
+			return dots;
+		this.dots = dots = new JLabel("...");
+		dots.setForeground(Color.white);
+		dots.setBackground(null);
+		dots.setFont(dots.getFont().deriveFont(Font.BOLD, 20f));
+		dots.setMinimumSize(new Dimension(FileIcon.SIZE_X, FileIcon.SIZE_Y));
+		dots.setPreferredSize(dots.getMinimumSize());
+		dots.setVerticalAlignment(SwingConstants.CENTER);
+		dots.setHorizontalAlignment(SwingConstants.CENTER);
+		dots.setToolTipText("Too many files; click to open folder in explorer.");
+		dots.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(final MouseEvent e) {
+				if (e.getButton() == 1) {
+					try {
+						Desktop.getDesktop().open(folder.toFile());
+					} catch (final IOException e1) {
+						e1.printStackTrace();
+					}
+				}
+			}
+		});
+		return dots;
 	}
 	
 	public int numFiles() {
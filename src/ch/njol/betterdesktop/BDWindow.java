@@ -28,17 +28,15 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 
 import javax.swing.JComponent;
 import javax.swing.JDialog;
@@ -48,15 +46,30 @@ import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 
+import org.eclipse.jdt.annotation.Nullable;
+
 // this is a JDialog so that it is focusable (to be able to easily close dropdown menus, and to hide the taskbar when clicked) but does not appear in the taskbar
 public class BDWindow extends JDialog {
 	
-	public final File folder;
-	public final File metaFolder;
-	private final File propFile;
+	// only changed on the EDT when the group is renamed, but also read by the file watcher's threads
+	public volatile Path folder;
+	public volatile Path metaFolder;
+	private volatile Path propFile;
+	/**
+	 * The attributes of the settings file when it was last read or written, which identify it after the group is renamed, or null if unknown
+	 */
+	private volatile @Nullable BasicFileAttributes propFileAttributes = null;
+	/**
+	 * {@link #folder} as the file watcher reports it, i.e. canonical
+	 */
+	private volatile Path watchedFolder;
 	
 	private static class Props extends PropertiesEx {
 		int x, y, numFilesX = 4;
+		/**
+		 * How deep changes inside the group are watched. Can be lowered if a group contains large folders with lots of activity, e.g. a download folder.
+		 */
+		int watchDepth = Main.DEFAULT_WATCH_DEPTH - 1;
 	}
 	
 	private final Props props = new Props();
@@ -69,7 +82,7 @@ public class BDWindow extends JDialog {
 	private final JComponent resizeArea;
 	private final static int RESIZE_AREA_WIDTH = 10;
 	
-	public BDWindow(final File folder) {
+	public BDWindow(final Path folder) {
 		this.folder = folder;
 		
 		setLayout(null);
@@ -113,7 +126,7 @@ public class BDWindow extends JDialog {
 					if (e.getClickCount() == 2 && e.getButton() == 1) {
 						// double click on title opens folder (here to be able to drag the window at the title too)
 						try {
-							Desktop.getDesktop().open(files.folder);
+							Desktop.getDesktop().open(files.getFolder().toFile());
 						} catch (final IOException e1) {
 							e1.printStackTrace();
 						}
@@ -147,7 +160,7 @@ public class BDWindow extends JDialog {
 		});
 		getContentPane().setBackground(new Color(0, 0, 0, 0));
 		
-		add(title = new JLabel(folder.getName()));
+		add(title = new JLabel(folder.getFileName().toString()));
 		title.setBackground(null);
 		title.setForeground(new Color(255, 255, 255));
 		title.setHorizontalAlignment(SwingConstants.CENTER);
@@ -200,17 +213,30 @@ public class BDWindow extends JDialog {
 		resizeArea.addMouseMotionListener(resizeListener);
 		resizeArea.addMouseListener(resizeListener);
 		
-		metaFolder = new File(folder, ".motunautr");
-		propFile = new File(metaFolder, "settings.properties");
+		metaFolder = folder.resolve(".motunautr");
+		propFile = metaFolder.resolve("settings.properties");
+		watchedFolder = Main.getDirectoryIndex().toIndexPath(folder);
 		
-		title.setText(folder.getName());
+		title.setText(folder.getFileName().toString());
 		
 		add(files = new BDFileContainer(this, folder, true, 200));
 		resizeArea.setVisible(files.numFiles() > 1);
 		
-		if (propFile.exists()) {
-			try (Reader r = new InputStreamReader(new FileInputStream(propFile), StandardCharsets.UTF_8)) {
+		final DesktopSnapshot.WindowState saved = Main.getSavedWindowState(folder);
+		if (saved != null) {
+			// use the state from the snapshot for now, and check whether the settings file was changed while Motunautr was not running later
+			props.x = saved.x;
+			props.y = saved.y;
+			props.numFilesX = saved.numFilesX;
+			props.watchDepth = saved.watchDepth;
+			setNumFilesX(props.numFilesX, false);
+			setLocation(props.x, props.y);
+			setLocation(Utils.insert(getBounds(), getGraphicsConfiguration().getBounds()));
+			Main.threadPool.execute(this::reloadProps);
+		} else if (Files.exists(propFile)) {
+			try (Reader r = Files.newBufferedReader(propFile, StandardCharsets.UTF_8)) {
 				props.load(r);
+				readPropFileAttributes();
 				setNumFilesX(props.numFilesX, false);
 				setLocation(props.x, props.y);
 				setLocation(Utils.insert(getBounds(), getGraphicsConfiguration().getBounds()));
@@ -223,35 +249,128 @@ public class BDWindow extends JDialog {
 			saveLocation(); // create properties file
 		}
 		
-		metaFolder.mkdir();
 		try {
-			Files.setAttribute(metaFolder.toPath(), "dos:hidden", true);
-		} catch (final IOException e) {
+			Files.createDirectories(metaFolder);
+			Files.setAttribute(metaFolder, "dos:hidden", true);
+		} catch (final IOException | UnsupportedOperationException e) {
 			e.printStackTrace();
 		}
 		
 		files.createDropTarget(this);
 		
-		Main.watchDirectory(folder.toPath(), new FileWatcher.DirectoryListener(200) {
-			@Override
-			public boolean ignoreChange(final Path path) {
-				return path.startsWith(metaFolder.toPath().toAbsolutePath());
-			}
-			
-			@Override
-			public void directoryChanged() {
-				System.out.println("Folder " + files.folder + " changed, reloading window");
-				SwingUtilities.invokeLater(() -> {
-					if (!BDWindow.this.folder.isDirectory()) { // just to make this more robust
-						dispose();
-					} else {
-						files.reload();
-						setNumFilesX(props.numFilesX, false);
-					}
-				});
-			}
+		Main.setWatchDepth(folder, Math.max(props.watchDepth, 1));
+		Main.watchDirectory(folder, directoryListener);
+		
+	}
+	
+	/**
+	 * Reads the settings file and applies any settings that differ from the current ones.
+	 */
+	private void reloadProps() {
+		final Props diskProps = new Props();
+		try (Reader r = Files.newBufferedReader(propFile, StandardCharsets.UTF_8)) {
+			diskProps.load(r);
+		} catch (final IOException e) {
+			return;
+		}
+		readPropFileAttributes();
+		SwingUtilities.invokeLater(() -> {
+			if (diskProps.x == props.x && diskProps.y == props.y && diskProps.numFilesX == props.numFilesX && diskProps.watchDepth == props.watchDepth)
+				return;
+			System.out.println("Settings of " + folder + " changed since the last snapshot");
+			props.x = diskProps.x;
+			props.y = diskProps.y;
+			props.numFilesX = diskProps.numFilesX;
+			props.watchDepth = diskProps.watchDepth;
+			setNumFilesX(props.numFilesX, false);
+			setLocation(props.x, props.y);
+			setLocation(Utils.insert(getBounds(), getGraphicsConfiguration().getBounds()));
+			Main.setWatchDepth(folder, Math.max(props.watchDepth, 1));
+			Main.snapshotChanged();
 		});
+	}
+	
+	private void readPropFileAttributes() {
+		try {
+			propFileAttributes = Files.readAttributes(propFile, BasicFileAttributes.class);
+		} catch (final IOException e) {
+			propFileAttributes = null;
+		}
+	}
+	
+	public DesktopSnapshot.WindowState getWindowState() {
+		return new DesktopSnapshot.WindowState(props.x, props.y, props.numFilesX, props.watchDepth);
+	}
+	
+	private final FileWatcher.DirectoryListener directoryListener = new FileWatcher.DirectoryListener(200) {
+		@Override
+		public boolean ignoreChange(final Path path) {
+			// changes to the folder itself (e.g. renaming or deleting it) are handled by Main
+			final Path watchedFolder = BDWindow.this.watchedFolder;
+			return path.equals(watchedFolder) || path.startsWith(watchedFolder.resolve(".motunautr"));
+		}
 		
+		@Override
+		public void directoryChanged(final ChangeSet changes) {
+			System.out.println("Folder " + files.getFolder() + " changed, updating window");
+			SwingUtilities.invokeLater(() -> files.update(changes));
+			Main.snapshotChanged();
+		}
+	};
+	
+	/**
+	 * @return Whether the given folder has the same settings as this window's group, i.e. whether the group was probably renamed to the given folder
+	 */
+	public boolean hasSettingsOf(final Path newFolder) {
+		final Path newPropFile = newFolder.resolve(".motunautr").resolve("settings.properties");
+		final Props newProps = new Props();
+		final BasicFileAttributes newAttributes;
+		try (Reader r = Files.newBufferedReader(newPropFile, StandardCharsets.UTF_8)) {
+			newProps.load(r);
+			newAttributes = Files.readAttributes(newPropFile, BasicFileAttributes.class);
+		} catch (final IOException e) {
+			return false;
+		}
+		if (newProps.x != props.x || newProps.y != props.y || newProps.numFilesX != props.numFilesX || newProps.watchDepth != props.watchDepth)
+			return false;
+		// a renamed folder keeps its settings file as it is, so a copy of the settings or a group that happens to be at the same location is not mistaken for it
+		final BasicFileAttributes attributes = propFileAttributes;
+		if (attributes == null)
+			return true; // only the settings can be compared
+		final Object fileKey = attributes.fileKey();
+		return newAttributes.size() == attributes.size() && newAttributes.lastModifiedTime().equals(attributes.lastModifiedTime())
+				&& (fileKey == null || fileKey.equals(newAttributes.fileKey()));
+	}
+	
+	/**
+	 * Makes this window show the given folder instead of its current one, e.g. after the group has been renamed. Keeps the window where it is.
+	 */
+	public void moveTo(final Path newFolder) {
+		Main.unwatchDirectory(folder, directoryListener);
+		Main.clearWatchDepth(folder);
+		folder = newFolder;
+		metaFolder = folder.resolve(".motunautr");
+		propFile = metaFolder.resolve("settings.properties");
+		watchedFolder = Main.getDirectoryIndex().toIndexPath(folder);
+		title.setText(folder.getFileName().toString());
+		files.setFolder(newFolder);
+		Main.setWatchDepth(folder, Math.max(props.watchDepth, 1));
+		Main.watchDirectory(folder, directoryListener);
+	}
+	
+	@Override
+	public void dispose() {
+		Main.unwatchDirectory(folder, directoryListener);
+		Main.clearWatchDepth(folder);
+		directoryListener.cancel();
+		super.dispose();
+	}
+	
+	/**
+	 * Called by {@link #files} whenever its icons changed
+	 */
+	void filesChanged() {
+		setNumFilesX(props.numFilesX, false);
 	}
 	
 	public void setNumFilesX(int numFilesX, final boolean suppressFlickering) {
@@ -284,11 +403,20 @@ public class BDWindow extends JDialog {
 	public void saveLocation() {
 		props.x = getX();
 		props.y = getY();
-		try (Writer w = new OutputStreamWriter(new FileOutputStream(propFile), StandardCharsets.UTF_8)) {
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		try (Writer w = new OutputStreamWriter(data, StandardCharsets.UTF_8)) {
 			props.save(w);
+		} catch (final IOException ex) {
+			ex.printStackTrace();
+			return;
+		}
+		try {
+			WriteJournal.INSTANCE.write(propFile, data.toByteArray());
+			readPropFileAttributes();
 		} catch (final IOException ex) {
 			ex.printStackTrace();
 		}
+		Main.snapshotChanged();
 	}
 	
 	@Override
@@ -312,11 +440,10 @@ public class BDWindow extends JDialog {
 	}
 	
 	private void startRename() {
-		final String name = files.folder.getName();
+		final String name = files.getFolder().getFileName().toString();
 		final String newName = (String) JOptionPane.showInputDialog(null, "", "Rename", JOptionPane.PLAIN_MESSAGE, null, null, name);
 		if (newName != null) {
-			final File newFile = new File(files.folder.getParentFile(), newName);
-			files.folder.renameTo(newFile);
+			Utils.rename(files.getFolder(), files.getFolder().resolveSibling(newName));
 		}
 	}
 	
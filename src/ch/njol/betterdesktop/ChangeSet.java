@@ -0,0 +1,114 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An immutable set of changes to files, consolidated from a series of file watch events.
+ * <p>
+ * A path is in at most one of the three sets: a file that was created and then deleted again does not appear at all,
+ * a file that was created and then modified is only in {@link #added}, and a file that was deleted and then created again is in {@link #modified}.
+ */
+public final class ChangeSet {
+	
+	public final static ChangeSet EMPTY = new ChangeSet(Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), false);
+	
+	public final Set<Path> added, removed, modified;
+	
+	/**
+	 * If true, some events were lost, and this change set may not contain all changes. Listeners should reload everything in this case.
+	 */
+	public final boolean incomplete;
+	
+	private ChangeSet(final Set<Path> added, final Set<Path> removed, final Set<Path> modified, final boolean incomplete) {
+		this.added = added;
+		this.removed = removed;
+		this.modified = modified;
+		this.incomplete = incomplete;
+	}
+	
+	public boolean isEmpty() {
+		return !incomplete && added.isEmpty() && removed.isEmpty() && modified.isEmpty();
+	}
+	
+	/**
+	 * @return All paths that changed in any way
+	 */
+	public Set<Path> all() {
+		final Set<Path> all = new HashSet<>(added);
+		all.addAll(removed);
+		all.addAll(modified);
+		return all;
+	}
+	
+	@Override
+	public String toString() {
+		return "ChangeSet[added=" + added + ", removed=" + removed + ", modified=" + modified + (incomplete ? ", incomplete" : "") + "]";
+	}
+	
+	/**
+	 * Collects events into a change set. Not thread-safe.
+	 */
+	public final static class Builder {
+		
+		private final Set<Path> added = new HashSet<>(), removed = new HashSet<>(), modified = new HashSet<>();
+		private boolean incomplete = false;
+		
+		public void add(final Path path, final Kind<Path> kind) {
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+				if (removed.remove(path))
+					modified.add(path);
+				else if (!modified.contains(path))
+					added.add(path);
+			} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+				modified.remove(path);
+				if (!added.remove(path))
+					removed.add(path);
+			} else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+				if (!added.contains(path) && !removed.contains(path))
+					modified.add(path);
+			}
+		}
+		
+		/**
+		 * Marks the change set as {@link ChangeSet#incomplete incomplete}.
+		 */
+		public void eventsLost() {
+			incomplete = true;
+		}
+		
+		public boolean isEmpty() {
+			return !incomplete && added.isEmpty() && removed.isEmpty() && modified.isEmpty();
+		}
+		
+		public ChangeSet build() {
+			if (isEmpty())
+				return EMPTY;
+			return new ChangeSet(Collections.unmodifiableSet(new HashSet<>(added)), Collections.unmodifiableSet(new HashSet<>(removed)), Collections.unmodifiableSet(new HashSet<>(modified)), incomplete);
+		}
+		
+	}
+	
+}
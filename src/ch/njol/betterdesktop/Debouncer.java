@@ -0,0 +1,192 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Schedules debounced actions on a hashed timing wheel driven by a single thread.
+ * <p>
+ * Triggering a task that is already scheduled only records the time of the trigger, and the wheel moves the task further back when its slot comes up.
+ * This makes both triggering and cancelling O(1), and the thread is never interrupted - it only parks until the next tick, or until a task is scheduled into an empty wheel.
+ */
+public class Debouncer {
+	
+	/**
+	 * The debouncer used by {@link FileWatcher.DirectoryListener}s
+	 */
+	public final static Debouncer SHARED = new Debouncer("Debouncer", 10, 512);
+	
+	private final long tickNanos;
+	private final int mask;
+	
+	// each slot is a stack of entries
+	private final AtomicReferenceArray<@Nullable Entry> wheel;
+	private final AtomicInteger numScheduled = new AtomicInteger();
+	
+	private final Thread thread;
+	
+	/**
+	 * @param tickMS The resolution of the wheel in milliseconds
+	 * @param numSlots Number of slots of the wheel, must be a power of two
+	 */
+	public Debouncer(final String name, final long tickMS, final int numSlots) {
+		if (Integer.bitCount(numSlots) != 1)
+			throw new IllegalArgumentException("numSlots must be a power of two");
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMS);
+		mask = numSlots - 1;
+		wheel = new AtomicReferenceArray<>(numSlots);
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Creates a new task. The task will run at the earliest after <tt>delayMS</tt> have passed since it was last triggered,
+	 * or after <tt>maxWaitMS</tt> have passed since it was first triggered, whichever comes first.
+	 */
+	public Task create(final long delayMS, final long maxWaitMS, final Runnable action) {
+		return new Task(TimeUnit.MILLISECONDS.toNanos(delayMS), TimeUnit.MILLISECONDS.toNanos(maxWaitMS), action);
+	}
+	
+	public final class Task {
+		
+		private final long delayNanos, maxWaitNanos;
+		private final Runnable action;
+		
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private volatile long firstTrigger, lastTrigger;
+		private volatile @Nullable Entry entry;
+		
+		Task(final long delayNanos, final long maxWaitNanos, final Runnable action) {
+			this.delayNanos = delayNanos;
+			this.maxWaitNanos = maxWaitNanos;
+			this.action = action;
+		}
+		
+		/**
+		 * Schedules this task, or delays it if it is already scheduled.
+		 */
+		public void trigger() {
+			final long now = System.nanoTime();
+			lastTrigger = now;
+			if (!scheduled.compareAndSet(false, true))
+				return;
+			firstTrigger = now;
+			final Entry e = new Entry(this);
+			entry = e;
+			if (numScheduled.getAndIncrement() == 0)
+				LockSupport.unpark(thread);
+			insert(e, toTick(now + delayNanos));
+		}
+		
+		/**
+		 * Unschedules this task if it is scheduled. Does nothing if the action is already running.
+		 */
+		public void cancel() {
+			final Entry e = entry;
+			if (e != null && scheduled.compareAndSet(true, false)) {
+				e.cancelled = true;
+				numScheduled.decrementAndGet();
+			}
+		}
+		
+		private long due() {
+			final long last = lastTrigger + delayNanos, max = firstTrigger + maxWaitNanos;
+			return last - max < 0 ? last : max;
+		}
+		
+	}
+	
+	private final static class Entry {
+		private final Task task;
+		private long deadlineTick;
+		private volatile boolean cancelled;
+		private @Nullable Entry next;
+		
+		public Entry(final Task task) {
+			this.task = task;
+		}
+	}
+	
+	private final long toTick(final long deadlineNanos) {
+		return Math.floorDiv(deadlineNanos, tickNanos) + 1;
+	}
+	
+	private final void insert(final Entry e, final long deadlineTick) {
+		e.deadlineTick = deadlineTick;
+		final int slot = (int) (e.deadlineTick & mask);
+		while (true) {
+			final Entry head = wheel.get(slot);
+			e.next = head;
+			if (wheel.compareAndSet(slot, head, e))
+				return;
+		}
+	}
+	
+	private final void run() {
+		long processedTick = Math.floorDiv(System.nanoTime(), tickNanos);
+		while (true) {
+			if (numScheduled.get() == 0)
+				LockSupport.park(this);
+			final long nowTick = Math.floorDiv(System.nanoTime(), tickNanos);
+			// after a long pause every slot has to be checked, but only once
+			for (long t = Math.max(processedTick + 1, nowTick - mask); t <= nowTick; t++)
+				processSlot((int) (t & mask), nowTick);
+			processedTick = nowTick;
+			final long toWait = (nowTick + 1) * tickNanos - System.nanoTime();
+			if (toWait > 0 && numScheduled.get() != 0)
+				LockSupport.parkNanos(this, toWait);
+		}
+	}
+	
+	private final void processSlot(final int slot, final long nowTick) {
+		Entry e = wheel.getAndSet(slot, null);
+		while (e != null) {
+			final Entry next = e.next;
+			e.next = null;
+			if (!e.cancelled) {
+				if (e.deadlineTick > nowTick) { // due in a later round
+					insert(e, e.deadlineTick);
+				} else {
+					final Task task = e.task;
+					final long dueTick = toTick(task.due());
+					if (dueTick > nowTick) { // triggered again in the meantime
+						insert(e, dueTick);
+					} else if (task.scheduled.compareAndSet(true, false)) {
+						numScheduled.decrementAndGet();
+						try {
+							task.action.run();
+						} catch (final Throwable t) {
+							t.printStackTrace();
+						}
+					}
+				}
+			}
+			e = next;
+		}
+	}
+	
+}
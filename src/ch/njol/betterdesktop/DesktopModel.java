@@ -0,0 +1,224 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.awt.Image;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import javax.swing.SwingUtilities;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * An immutable snapshot of everything shown on the desktop: the contents of the folders shown by windows and dropdowns, and the icons of the files they run.
+ * <p>
+ * The current version is published through an {@link AtomicReference}, so reading it never blocks. Writers (folder reads, icon loaders) create a new version that
+ * shares all unchanged folders and icon directories with the previous one, using {@link PersistentMap}s so that a write only costs as much as the folder it changes. The EDT picks up the newest version at most once per {@link #FRAME_MS frame} and notifies
+ * its {@link Listener listeners}, which update the Swing components accordingly.
+ */
+public final class DesktopModel {
+	
+	public final static long FRAME_MS = 16;
+	
+	/**
+	 * Shown folders by folder
+	 */
+	private final PersistentMap<Path, FolderModel> folders;
+	
+	/**
+	 * Icons by the folder and name of the file they are the icon of, so that adding an icon only copies the icons of one folder.
+	 * Only has the icons of shown files; all other icons are only kept by the {@link IconCache}.
+	 */
+	private final PersistentMap<Path, Map<String, Image>> icons;
+	
+	/**
+	 * How many items of the shown folders run each file. The icon of a file is dropped once no item runs it any more.
+	 */
+	private final PersistentMap<Path, Integer> shown;
+	
+	private DesktopModel(final PersistentMap<Path, FolderModel> folders, final PersistentMap<Path, Map<String, Image>> icons, final PersistentMap<Path, Integer> shown) {
+		this.folders = folders;
+		this.icons = icons;
+		this.shown = shown;
+	}
+	
+	public @Nullable FolderModel getFolder(final Path folder) {
+		return folders.get(folder);
+	}
+	
+	public @Nullable Image getIcon(final Path file) {
+		final Map<String, Image> dirIcons = icons.get(file.toAbsolutePath().getParent());
+		return dirIcons == null ? null : dirIcons.get(String.valueOf(file.getFileName()));
+	}
+	
+	public int numFolders() {
+		return folders.size();
+	}
+	
+	public int numIcons() {
+		final int[] n = {0};
+		icons.forEach((dir, dirIcons) -> n[0] += dirIcons.size());
+		return n[0];
+	}
+	
+	/**
+	 * @return A model with the given folder model, or this model if it already has the same or a more recent model of the folder
+	 */
+	public DesktopModel withFolder(final FolderModel folder) {
+		final FolderModel old = folders.get(folder.folder);
+		if (old != null && old.version >= folder.version)
+			return this;
+		return withFolders(folders.with(folder.folder, folder), old, folder);
+	}
+	
+	public DesktopModel withoutFolder(final Path folder) {
+		final FolderModel old = folders.get(folder);
+		if (old == null)
+			return this;
+		return withFolders(folders.without(folder), old, null);
+	}
+	
+	/**
+	 * Counts the items of an added folder model as shown and those of a removed or replaced one as no longer shown, and drops the icons of files that are not shown any more.
+	 * Only touches the items of the two folder models.
+	 */
+	private DesktopModel withFolders(final PersistentMap<Path, FolderModel> newFolders, final @Nullable FolderModel removed, final @Nullable FolderModel added) {
+		PersistentMap<Path, Integer> newShown = shown;
+		PersistentMap<Path, Map<String, Image>> newIcons = icons;
+		// add first, so that files that are still shown never drop to zero
+		if (added != null) {
+			for (final FolderModel.Item item : added.items) {
+				final Integer count = newShown.get(item.fileToRun);
+				newShown = newShown.with(item.fileToRun, count == null ? 1 : count + 1);
+			}
+		}
+		if (removed != null) {
+			for (final FolderModel.Item item : removed.items) {
+				final Integer count = newShown.get(item.fileToRun);
+				if (count != null && count > 1) {
+					newShown = newShown.with(item.fileToRun, count - 1);
+				} else {
+					newShown = newShown.without(item.fileToRun);
+					newIcons = withoutIcon(newIcons, item.fileToRun);
+				}
+			}
+		}
+		return new DesktopModel(newFolders, newIcons, newShown);
+	}
+	
+	private static PersistentMap<Path, Map<String, Image>> withoutIcon(final PersistentMap<Path, Map<String, Image>> icons, final Path file) {
+		final Path dir = file.toAbsolutePath().getParent();
+		final Map<String, Image> dirIcons = icons.get(dir);
+		final String name = String.valueOf(file.getFileName());
+		if (dirIcons == null || !dirIcons.containsKey(name))
+			return icons;
+		if (dirIcons.size() == 1)
+			return icons.without(dir);
+		final Map<String, Image> newDirIcons = new HashMap<>(dirIcons);
+		newDirIcons.remove(name);
+		return icons.with(dir, Collections.unmodifiableMap(newDirIcons));
+	}
+	
+	public DesktopModel withIcon(final Path file, final Image icon) {
+		final Path dir = file.toAbsolutePath().getParent();
+		final String name = String.valueOf(file.getFileName());
+		final Map<String, Image> dirIcons = icons.get(dir);
+		if (dirIcons != null && dirIcons.get(name) == icon)
+			return this;
+		final Map<String, Image> newDirIcons = dirIcons == null ? new HashMap<>() : new HashMap<>(dirIcons);
+		newDirIcons.put(name, icon);
+		return new DesktopModel(folders, icons.with(dir, Collections.unmodifiableMap(newDirIcons)), shown);
+	}
+	
+	@Override
+	public String toString() {
+		return "DesktopModel[" + numFolders() + " folders, " + numIcons() + " icons]";
+	}
+	
+	// publication
+	
+	private final static AtomicReference<DesktopModel> current = new AtomicReference<>(new DesktopModel(PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty()));
+	
+	/**
+	 * @return The most recent model. May be newer than the one the Swing components currently show.
+	 */
+	public static DesktopModel current() {
+		return current.get();
+	}
+	
+	/**
+	 * Publishes a new version of the model. Can be called from any thread; the given function may be called multiple times if other threads publish at the same time.
+	 */
+	public static void update(final UnaryOperator<DesktopModel> update) {
+		final DesktopModel old = current.get(), updated = current.updateAndGet(update);
+		if (updated != old)
+			frame.trigger();
+	}
+	
+	/**
+	 * Notified on the EDT whenever a new version has been consumed
+	 */
+	public static interface Listener {
+		public void modelChanged(DesktopModel oldModel, DesktopModel newModel);
+	}
+	
+	// only accessed from the EDT
+	private final static List<Listener> listeners = new ArrayList<>();
+	private static DesktopModel consumed = current.get();
+	
+	private final static Debouncer.Task frame = Debouncer.SHARED.create(FRAME_MS, FRAME_MS, () -> SwingUtilities.invokeLater(DesktopModel::consume));
+	
+	private static void consume() {
+		final DesktopModel oldModel = consumed, newModel = current.get();
+		if (oldModel == newModel)
+			return;
+		consumed = newModel;
+		for (final Listener l : listeners.toArray(new Listener[0]))
+			l.modelChanged(oldModel, newModel);
+	}
+	
+	/**
+	 * Must be called on the EDT
+	 */
+	public static void addListener(final Listener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Must be called on the EDT
+	 */
+	public static void removeListener(final Listener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * @return The version last consumed by the EDT. Must be called on the EDT.
+	 */
+	public static DesktopModel consumed() {
+		return consumed;
+	}
+	
+}
@@ -0,0 +1,268 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A compact binary copy of the main folder's contents, the icons' run targets, and the windows' settings, saved under AppData so that the windows can be shown right away at the next start,
+ * without waiting for the file system. The actual contents are compared with the snapshot in the background, and the windows are then updated with any differences.
+ * <p>
+ * Saves alternate between two files, so that a torn write always leaves the previous snapshot intact. The file that was loaded is skipped while it may still be memory mapped.
+ */
+public final class DesktopSnapshot {
+	
+	private final static int MAGIC = 0x4D544E53; // "MTNS"
+	private final static int VERSION = 2;
+	private final static int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+	
+	private final static int FLAG_DIRECTORY = 1, FLAG_HIDDEN = 2;
+	
+	/**
+	 * The settings of a window, as stored in its group's settings file.
+	 */
+	public final static class WindowState {
+		public final int x, y, numFilesX, watchDepth;
+		
+		public WindowState(final int x, final int y, final int numFilesX, final int watchDepth) {
+			this.x = x;
+			this.y = y;
+			this.numFilesX = numFilesX;
+			this.watchDepth = watchDepth;
+		}
+	}
+	
+	public final Path mainFolder;
+	public final Map<Path, List<DirectoryIndex.Entry>> listings;
+	public final Map<Path, RunTargetResolver.Resolution> runTargets;
+	
+	/**
+	 * The windows' states by the name of their folders
+	 */
+	public final Map<String, WindowState> windows;
+	
+	public DesktopSnapshot(final Path mainFolder, final Map<Path, List<DirectoryIndex.Entry>> listings, final Map<Path, RunTargetResolver.Resolution> runTargets, final Map<String, WindowState> windows) {
+		this.mainFolder = mainFolder;
+		this.listings = Collections.unmodifiableMap(listings);
+		this.runTargets = Collections.unmodifiableMap(runTargets);
+		this.windows = Collections.unmodifiableMap(windows);
+	}
+	
+	// saving & loading
+	
+	private final static File folder = new File(System.getProperty("user.home") + "/AppData/Roaming/Motunautr/");
+	private final static Path[] files = {new File(folder, "snapshot-1.bin").toPath(), new File(folder, "snapshot-2.bin").toPath()};
+	
+	// guarded by the class
+	private static int nextFile = 0;
+	private static long nextSequence = 1;
+	private static int loadedFile = -1;
+	private static @Nullable WeakReference<MappedByteBuffer> loadedMapping = null;
+	
+	/**
+	 * @return Whether the given file is the loaded one and may still be memory mapped, which prevents overwriting it on Windows.
+	 *         The mapping is only released once its buffer has been garbage collected.
+	 */
+	private static boolean isMapped(final int file) {
+		final WeakReference<MappedByteBuffer> loadedMapping = DesktopSnapshot.loadedMapping;
+		if (file != loadedFile || loadedMapping == null)
+			return false;
+		if (loadedMapping.get() != null)
+			return true;
+		DesktopSnapshot.loadedMapping = null;
+		return false;
+	}
+	
+	/**
+	 * Loads the most recent intact snapshot.
+	 * 
+	 * @return The loaded snapshot, or null if there is none for the given main folder
+	 */
+	public static synchronized @Nullable DesktopSnapshot load(final Path mainFolder) {
+		final long[] sequences = new long[files.length];
+		for (int i = 0; i < files.length; i++)
+			sequences[i] = readSequence(files[i]);
+		final int newest = sequences[0] >= sequences[1] ? 0 : 1;
+		nextSequence = Math.max(sequences[0], sequences[1]) + 1;
+		for (final int i : new int[] {newest, 1 - newest}) {
+			if (sequences[i] == 0)
+				continue;
+			nextFile = 1 - i;
+			try (FileChannel channel = FileChannel.open(files[i], StandardOpenOption.READ)) {
+				final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				loadedFile = i;
+				loadedMapping = new WeakReference<>(buffer);
+				buffer.position(HEADER_SIZE - 8);
+				final long checksum = buffer.getLong();
+				final CRC32 crc = new CRC32();
+				crc.update(buffer.duplicate());
+				if (crc.getValue() != checksum) {
+					System.out.println("The desktop snapshot " + files[i] + " is damaged");
+					continue;
+				}
+				final DesktopSnapshot snapshot = read(buffer, FileWatcher.toCanonicalPath(mainFolder));
+				if (snapshot == null)
+					System.out.println("Ignoring the desktop snapshot, as it is of a different main folder");
+				return snapshot;
+			} catch (final IOException | RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return The sequence number of the given snapshot file, or 0 if it doesn't exist or is obviously damaged
+	 */
+	private static long readSequence(final Path file) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining() && channel.read(header) >= 0) {}
+			header.flip();
+			if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+				return 0;
+			final long sequence = header.getLong();
+			final int length = header.getInt();
+			return length == channel.size() - HEADER_SIZE ? sequence : 0;
+		} catch (final NoSuchFileException e) {
+			return 0;
+		} catch (final IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+	
+	private static @Nullable DesktopSnapshot read(final ByteBuffer in, final Path mainFolder) {
+		if (!readString(in).equals(mainFolder.toString()))
+			return null;
+		final Map<Path, List<DirectoryIndex.Entry>> listings = new HashMap<>();
+		final int numDirectories = in.getInt();
+		for (int i = 0; i < numDirectories; i++) {
+			final Path dir = mainFolder.resolve(readString(in));
+			final int numEntries = in.getInt();
+			final List<DirectoryIndex.Entry> listing = new ArrayList<>(numEntries);
+			for (int j = 0; j < numEntries; j++) {
+				final String name = readString(in);
+				final byte flags = in.get();
+				final long size = in.getLong(), lastModified = in.getLong();
+				listing.add(new DirectoryIndex.Entry(dir.resolve(name), name, (flags & FLAG_DIRECTORY) != 0, (flags & FLAG_HIDDEN) != 0, size, lastModified));
+			}
+			listings.put(dir, listing);
+		}
+		final Map<Path, RunTargetResolver.Resolution> runTargets = new HashMap<>();
+		final int numRunTargets = in.getInt();
+		for (int i = 0; i < numRunTargets; i++) {
+			final Path dir = mainFolder.resolve(readString(in));
+			final Path target = mainFolder.getFileSystem().getPath(readString(in));
+			runTargets.put(dir, new RunTargetResolver.Resolution(target, mainFolder.resolve(readString(in))));
+		}
+		final Map<String, WindowState> windows = new HashMap<>();
+		final int numWindows = in.getInt();
+		for (int i = 0; i < numWindows; i++) {
+			final String name = readString(in);
+			windows.put(name, new WindowState(in.getInt(), in.getInt(), in.getInt(), in.getInt()));
+		}
+		return new DesktopSnapshot(mainFolder, listings, runTargets, windows);
+	}
+	
+	private static String readString(final ByteBuffer in) {
+		final byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Writes this snapshot to the file that was not written last, unless that is the loaded file and still mapped.
+	 */
+	public void save() throws IOException {
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(data)) {
+			writeString(out, mainFolder.toString());
+			out.writeInt(listings.size());
+			for (final Map.Entry<Path, List<DirectoryIndex.Entry>> e : listings.entrySet()) {
+				writeString(out, mainFolder.relativize(e.getKey()).toString());
+				out.writeInt(e.getValue().size());
+				for (final DirectoryIndex.Entry entry : e.getValue()) {
+					writeString(out, entry.name);
+					out.writeByte((entry.directory ? FLAG_DIRECTORY : 0) | (entry.hidden ? FLAG_HIDDEN : 0));
+					out.writeLong(entry.size);
+					out.writeLong(entry.lastModified);
+				}
+			}
+			out.writeInt(runTargets.size());
+			for (final Map.Entry<Path, RunTargetResolver.Resolution> e : runTargets.entrySet()) {
+				writeString(out, mainFolder.relativize(e.getKey()).toString());
+				writeString(out, e.getValue().target.toString());
+				writeString(out, mainFolder.relativize(e.getValue().lastDirectory).toString());
+			}
+			out.writeInt(windows.size());
+			for (final Map.Entry<String, WindowState> e : windows.entrySet()) {
+				writeString(out, e.getKey());
+				final WindowState w = e.getValue();
+				out.writeInt(w.x);
+				out.writeInt(w.y);
+				out.writeInt(w.numFilesX);
+				out.writeInt(w.watchDepth);
+			}
+		}
+		final byte[] bytes = data.toByteArray();
+		final CRC32 crc = new CRC32();
+		crc.update(bytes);
+		synchronized (DesktopSnapshot.class) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(nextSequence).putInt(bytes.length).putLong(crc.getValue());
+			header.flip();
+			folder.mkdirs();
+			final ByteBuffer[] buffers = {header, ByteBuffer.wrap(bytes)};
+			final int file = isMapped(nextFile) ? 1 - nextFile : nextFile;
+			try (FileChannel channel = FileChannel.open(files[file], StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (buffers[1].hasRemaining())
+					channel.write(buffers);
+			}
+			nextFile = 1 - file;
+			nextSequence++;
+		}
+	}
+	
+	private static void writeString(final DataOutputStream out, final String s) throws IOException {
+		final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+}
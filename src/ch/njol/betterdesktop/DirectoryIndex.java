@@ -0,0 +1,338 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * An in-memory index of the directories watched by a {@link FileWatcher}, holding the names and attributes of their contents.
+ * <p>
+ * A directory is read in bulk with a single directory stream and one attribute read per entry the first time it is listed,
+ * and then served from memory until the file watcher reports a change inside it. Directories that are not watched (e.g. because they are nested too deep) are read every time.
+ */
+public final class DirectoryIndex {
+	
+	/**
+	 * An index that doesn't cache anything, for when there's no file watcher
+	 */
+	public final static DirectoryIndex UNCACHED = new DirectoryIndex(null);
+	
+	/**
+	 * A file or folder as it was when its directory was read.
+	 */
+	public final static class Entry {
+		public final Path path;
+		public final String name;
+		public final boolean directory, hidden;
+		public final long size, lastModified;
+		
+		Entry(final Path path, final BasicFileAttributes attrs) {
+			this.path = path;
+			name = "" + path.getFileName();
+			directory = attrs.isDirectory();
+			hidden = attrs instanceof DosFileAttributes ? ((DosFileAttributes) attrs).isHidden() : name.startsWith(".");
+			size = attrs.size();
+			lastModified = attrs.lastModifiedTime().toMillis();
+		}
+		
+		Entry(final Path path, final String name, final boolean directory, final boolean hidden, final long size, final long lastModified) {
+			this.path = path;
+			this.name = name;
+			this.directory = directory;
+			this.hidden = hidden;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+		
+		@Override
+		public String toString() {
+			return path.toString();
+		}
+	}
+	
+	private final static class Listing {
+		private final List<Entry> entries;
+		private final Map<Path, Entry> byPath = new HashMap<>();
+		
+		public Listing(final List<Entry> entries) {
+			this.entries = Collections.unmodifiableList(entries);
+			for (final Entry e : entries)
+				byPath.put(e.path, e);
+		}
+	}
+	
+	private final @Nullable FileWatcher watcher;
+	
+	// sorted to be able to invalidate whole subtrees
+	private final ConcurrentSkipListMap<Path, Listing> listings = new ConcurrentSkipListMap<>();
+	
+	// incremented on every invalidation, so that a listing that was read while its directory changed is not cached
+	private final AtomicLong generation = new AtomicLong();
+	
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+	
+	/**
+	 * The run targets of the directories in this index, which are kept up to date along with it
+	 */
+	public final RunTargetResolver runTargets = new RunTargetResolver(this);
+	
+	DirectoryIndex(final @Nullable FileWatcher watcher) {
+		this.watcher = watcher;
+	}
+	
+	/**
+	 * Canonicalizing a path costs a file system access, so paths that are already inside the watched directory are only normalized.
+	 */
+	Path toIndexPath(final Path path) {
+		final FileWatcher watcher = this.watcher;
+		if (watcher != null && path.isAbsolute()) {
+			final Path normalized = path.normalize();
+			if (normalized.startsWith(watcher.watchedDirectory))
+				return normalized;
+		}
+		return FileWatcher.toCanonicalPath(path);
+	}
+	
+	/**
+	 * @return Whether the file watcher reports all changes of interest in the given directory
+	 */
+	boolean isWatched(final Path dir) {
+		final FileWatcher watcher = this.watcher;
+		if (watcher == null || !dir.startsWith(watcher.watchedDirectory))
+			return false;
+		final WatchFilter filter = watcher.getFilter();
+		final Path relativePath = watcher.watchedDirectory.relativize(dir);
+		return (relativePath.toString().isEmpty() || filter.accepts(watcher.watchedDirectory, dir)) && filter.maxDepth(relativePath) >= 1;
+	}
+	
+	/**
+	 * @return The contents of the given directory sorted by name, or null if it is not a directory or cannot be read.
+	 *         For watched directories, this does not contain anything that the file watcher's filter excludes.
+	 */
+	public @Nullable List<Entry> list(final Path directory) {
+		final Path dir = toIndexPath(directory);
+		// only watched directories are cached, so this doesn't have to check whether the directory is watched first
+		final Listing cached = listings.get(dir);
+		if (cached != null) {
+			hits.increment();
+			return cached.entries;
+		}
+		// known not to be a directory?
+		final Path parent = dir.getParent();
+		final Listing parentListing = parent == null ? null : listings.get(parent);
+		if (parentListing != null) {
+			final Entry e = parentListing.byPath.get(dir);
+			if (e == null || !e.directory) {
+				hits.increment();
+				return null;
+			}
+		}
+		misses.increment();
+		if (!isWatched(dir)) {
+			final List<Entry> entries = read(dir, false);
+			return entries == null ? null : Collections.unmodifiableList(entries);
+		}
+		final long gen = generation.get();
+		final List<Entry> entries = read(dir, true);
+		if (entries == null)
+			return null;
+		final Listing listing = new Listing(entries);
+		listings.put(dir, listing);
+		if (generation.get() != gen) // changed while reading it; use the result once, but don't keep it
+			listings.remove(dir, listing);
+		return listing.entries;
+	}
+	
+	/**
+	 * @return The given file or folder, or null if it doesn't exist
+	 */
+	public @Nullable Entry get(final Path path) {
+		final Path p = toIndexPath(path);
+		final Path parent = p.getParent();
+		if (parent != null) {
+			final Listing cached = listings.get(parent);
+			if (cached != null) {
+				hits.increment();
+				return cached.byPath.get(p);
+			}
+			if (isWatched(parent)) {
+				final List<Entry> entries = list(parent);
+				if (entries == null)
+					return null;
+				final Listing listing = listings.get(parent);
+				if (listing != null)
+					return listing.byPath.get(p);
+				for (final Entry e : entries) {
+					if (e.path.equals(p))
+						return e;
+				}
+				return null;
+			}
+		}
+		misses.increment();
+		try {
+			return new Entry(p, readAttributes(p));
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+	
+	private @Nullable List<Entry> read(final Path dir, final boolean filtered) {
+		final FileWatcher watcher = this.watcher;
+		final List<Entry> entries = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (final Path p : stream) {
+				if (filtered && watcher != null && !watcher.getFilter().accepts(watcher.watchedDirectory, p))
+					continue;
+				try {
+					entries.add(new Entry(p, readAttributes(p)));
+				} catch (final IOException e) {
+					// deleted in the meantime
+				}
+			}
+		} catch (final IOException e) {
+			return null;
+		}
+		entries.sort((e1, e2) -> e1.path.compareTo(e2.path)); // same order as sorted Files
+		return entries;
+	}
+	
+	private static BasicFileAttributes readAttributes(final Path p) throws IOException {
+		if (Files.getFileAttributeView(p, DosFileAttributeView.class) != null) {
+			try {
+				return Files.readAttributes(p, DosFileAttributes.class);
+			} catch (final UnsupportedOperationException | IOException e) {
+				// e.g. no extended attributes on Linux
+			}
+		}
+		return Files.readAttributes(p, BasicFileAttributes.class);
+	}
+	
+	/**
+	 * Fills this index with listings that were read earlier, e.g. in a previous run of Motunautr.
+	 * They are served like any other cached listing until the file watcher reports a change to them.
+	 */
+	void preload(final Map<Path, List<Entry>> knownListings) {
+		generation.incrementAndGet();
+		for (final Map.Entry<Path, List<Entry>> e : knownListings.entrySet()) {
+			if (isWatched(e.getKey()))
+				listings.put(e.getKey(), new Listing(new ArrayList<>(e.getValue())));
+		}
+	}
+	
+	/**
+	 * @return A copy of all listings currently held by this index
+	 */
+	public Map<Path, List<Entry>> cachedListings() {
+		final Map<Path, List<Entry>> result = new TreeMap<>();
+		for (final Map.Entry<Path, Listing> e : listings.entrySet())
+			result.put(e.getKey(), e.getValue().entries);
+		return result;
+	}
+	
+	// invalidation
+	
+	/**
+	 * Makes the next query see a change Motunautr just made itself, instead of only after the file watcher reports it.
+	 */
+	public void changed(final Path path) {
+		generation.incrementAndGet(); // before dropping the parent, so that a concurrent read of it is not cached
+		final Path p = toIndexPath(path);
+		final Path parent = p.getParent();
+		if (parent != null) {
+			listings.remove(parent);
+			runTargets.listingChanged(parent);
+		}
+		invalidateTree(p);
+	}
+	
+	// called by the file watcher
+	
+	void fileChanged(final Path path, final Kind<Path> kind) {
+		generation.incrementAndGet();
+		final Path parent = path.getParent();
+		if (parent != null) {
+			listings.remove(parent);
+			runTargets.listingChanged(parent);
+		}
+		if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			invalidateTree(path);
+		} else {
+			listings.remove(path);
+			runTargets.treeChanged(path); // e.g. a folder that was moved here
+		}
+	}
+	
+	/**
+	 * Forgets everything known about the given directory and its subdirectories.
+	 */
+	void invalidateTree(final Path start) {
+		generation.incrementAndGet();
+		runTargets.treeChanged(start);
+		final String startString = start.toString();
+		// paths are sorted, so all paths inside 'start' follow it directly (possibly mixed with some siblings like 'start-2')
+		for (final Path p : listings.tailMap(start, true).keySet()) {
+			if (!p.startsWith(start)) {
+				if (!p.toString().startsWith(startString))
+					break;
+				continue;
+			}
+			listings.remove(p);
+		}
+	}
+	
+	// statistics
+	
+	public int numCachedDirectories() {
+		return listings.size();
+	}
+	
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	@Override
+	public String toString() {
+		return "DirectoryIndex[" + numCachedDirectories() + " directories cached, " + getHits() + " hits, " + getMisses() + " misses]";
+	}
+	
+}
@@ -0,0 +1,123 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+
+import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.WinBase;
+
+/**
+ * Watches a directory natively if possible, and polls it otherwise. Switches to polling if native watching stops working, e.g. because a network share was disconnected,
+ * and tells its sink that events were lost so that the watcher catches up on everything that changed in the meantime.
+ */
+public class FallbackWatchBackend implements WatchBackend {
+	
+	private final Path root;
+	private volatile WatchFilter filter;
+	private volatile WatchBackend backend;
+	private volatile boolean closed = false;
+	
+	public FallbackWatchBackend(final Path root, final WatchFilter filter) throws IOException {
+		this.root = root;
+		this.filter = filter;
+		WatchBackend backend;
+		if (isNetworkOrRemovable(root)) {
+			System.out.println(root + " is on a network share or removable drive, polling it for changes");
+			backend = new PollingWatchBackend(root, filter);
+		} else {
+			try {
+				backend = WatchBackend.createNative(root, filter);
+			} catch (final IOException | UnsupportedOperationException e) {
+				System.out.println("Cannot watch " + root + " natively (" + e + "), polling it for changes");
+				backend = new PollingWatchBackend(root, filter);
+			}
+		}
+		this.backend = backend;
+	}
+	
+	/**
+	 * @return Whether the given path is on a network share (a UNC path or a mapped drive letter) or on a removable drive,
+	 *         whose watch services miss events or stop working when the drive is disconnected
+	 */
+	private static boolean isNetworkOrRemovable(final Path path) {
+		final Path pathRoot = path.getRoot();
+		if (pathRoot == null || path.getFileSystem() != FileSystems.getDefault())
+			return false;
+		final String rootName = pathRoot.toString();
+		if (rootName.startsWith("\\\\"))
+			return true;
+		if (!System.getProperty("os.name").startsWith("Windows"))
+			return false;
+		try {
+			final int type = Kernel32.INSTANCE.GetDriveType(rootName);
+			return type == WinBase.DRIVE_REMOTE || type == WinBase.DRIVE_REMOVABLE || type == WinBase.DRIVE_CDROM;
+		} catch (final UnsatisfiedLinkError e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return Whether changes are found by polling
+	 */
+	public boolean isPolling() {
+		return backend instanceof PollingWatchBackend;
+	}
+	
+	@Override
+	public void poll(final EventSink sink) throws InterruptedException {
+		final WatchBackend backend = this.backend;
+		backend.poll(sink);
+		if (backend.hasFailed())
+			switchToPolling(backend, sink);
+	}
+	
+	private synchronized void switchToPolling(final WatchBackend failed, final EventSink sink) {
+		if (backend != failed || closed)
+			return;
+		System.out.println("Watching " + root + " failed, polling it for changes from now on");
+		try {
+			failed.close();
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		backend = new PollingWatchBackend(root, filter);
+		sink.overflow(root);
+	}
+	
+	@Override
+	public void register(final Path path) {
+		backend.register(path);
+	}
+	
+	@Override
+	public synchronized void filterChanged(final WatchFilter filter, final Path directory) {
+		this.filter = filter;
+		backend.filterChanged(filter, directory);
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		backend.close();
+	}
+	
+}
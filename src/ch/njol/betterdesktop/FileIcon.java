@@ -28,15 +28,20 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Window;
+import java.awt.event.HierarchyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.imageio.ImageIO;
 import javax.swing.Icon;
@@ -58,10 +63,17 @@ public class FileIcon extends JPanel {
 	
 	private final BDFileContainer fileContainer;
 	
-	public final File file;
-	public final File fileToRun;
+	public final Path file;
+	public final Path fileToRun;
+	/**
+	 * The modification time of {@link #fileToRun} when this icon was created or last {@link #refresh() refreshed}, which together with the file identifies its icon in the {@link IconCache}
+	 */
+	private volatile long lastModified;
+	/**
+	 * The size of {@link #fileToRun} when this icon was created or last refreshed
+	 */
+	private volatile long size;
 	private final boolean isExpandable;
-	public @Nullable Image icon;
 	private final JLabel /*iconLabel, */ nameLabel;
 	
 	private boolean hovered = false;
@@ -71,15 +83,27 @@ public class FileIcon extends JPanel {
 	private final static int ICON_SIZE = 32;
 	private final static int LABEL_HEIGHT = SIZE_Y - 2 * PADDING_Y - ICON_SIZE;
 	
-	public FileIcon(final BDFileContainer fileContainer, final File file, final boolean useFolder) {
+	/**
+	 * @param fileToRun The file to run when clicked, see {@link #getFileToRun(Path, boolean)}
+	 */
+	public FileIcon(final BDFileContainer fileContainer, final Path file, final Path fileToRun) {
 		this.fileContainer = fileContainer;
 		this.file = file;
-		fileToRun = getFileToRun(file, useFolder);
+		this.fileToRun = fileToRun;
+		final DirectoryIndex.Entry target = Main.getDirectoryIndex().get(fileToRun);
+		lastModified = target == null ? -1 : target.lastModified;
+		size = target == null ? -1 : target.size;
 		
 		setTransferHandler(fileContainer.transferHandler);
 		fileContainer.createDropTarget(this);
 		
 		updateIcon();
+		// icons that become visible are loaded before icons that aren't
+		addHierarchyListener(e -> {
+			final IconLoader.Job job = this.job;
+			if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0 && isShowing() && job != null)
+				job.promote(fileContainer.getIconPriority());
+		});
 		
 		setLayout(null);
 		setMinimumSize(new Dimension(SIZE_X, SIZE_Y));
@@ -88,7 +112,7 @@ public class FileIcon extends JPanel {
 		setBackground(null);
 		setOpaque(false);
 		
-		String name = file.getName();
+		String name = file.getFileName().toString();
 		if (name.endsWith(".lnk") || name.endsWith(".url") || name.endsWith(".exe"))
 			name = name.substring(0, name.lastIndexOf('.'));
 		if (name.startsWith("!"))
@@ -102,14 +126,15 @@ public class FileIcon extends JPanel {
 		if (nameLabel.getFontMetrics(nameLabel.getFont()).stringWidth(name) > nameLabel.getWidth())
 			setToolTipText(name);
 		
-		isExpandable = file.isDirectory();
+		final DirectoryIndex.Entry entry = Main.getDirectoryIndex().get(file);
+		isExpandable = entry != null && entry.directory;
 		
 		final FixedMouseAdapter ma = new FixedMouseAdapter() {
 			@Override
 			public void mouseClicked(final MouseEvent e) {
 				if (e.getButton() == 1) {
 					try {
-						Desktop.getDesktop().open(fileToRun);
+						Desktop.getDesktop().open(fileToRun.toFile());
 					} catch (final IOException e1) {
 						e1.printStackTrace();
 					}
@@ -155,6 +180,7 @@ public class FileIcon extends JPanel {
 		final Composite oldComp = g2.getComposite();
 		if (!hovered)
 			g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.7f));
+		final Image icon = getIcon();
 		if (icon != null)
 			g.drawImage(icon, (getWidth() - ICON_SIZE) / 2, PADDING_Y, ICON_SIZE, ICON_SIZE, null);
 		if (isExpandable) {
@@ -192,92 +218,230 @@ public class FileIcon extends JPanel {
 	}
 	
 	private void startRename() {
-		String name = file.getName();
+		String name = file.getFileName().toString();
 		String extension = "";
-		if (!file.isDirectory() && (name.endsWith(".lnk") || name.endsWith(".url") || name.endsWith(".exe"))) {
+		if (!Files.isDirectory(file) && (name.endsWith(".lnk") || name.endsWith(".url") || name.endsWith(".exe"))) {
 			final int i = name.lastIndexOf('.');
 			extension = name.substring(i);
 			name = name.substring(0, i);
 		}
 		final String newName = (String) JOptionPane.showInputDialog(null, "", "Rename", JOptionPane.PLAIN_MESSAGE, null, null, name);
 		if (newName != null) {
-			final File newFile = new File(file.getParentFile(), newName + extension);
-			if (file.renameTo(newFile))
-				((BDFileContainer) getParent()).reload();
+			final Path newFile = file.resolveSibling(newName + extension);
+			final BDFileContainer container = (BDFileContainer) getParent();
+			if (container == fileContainer.window.files) {
+				// update the window directly and make the file watcher ignore the rename.
+				// dropdowns are not watched, and the window has to find out about renames in them to update the icon of the dropdown's folder.
+				final DirectoryIndex index = Main.getDirectoryIndex();
+				final Path oldPath = index.toIndexPath(file); // while it still exists. update() expects canonical paths, like the watcher sends.
+				try {
+					WriteJournal.INSTANCE.move(file, newFile);
+					index.changed(file);
+					index.changed(newFile);
+					final ChangeSet.Builder changes = new ChangeSet.Builder();
+					changes.add(oldPath, StandardWatchEventKinds.ENTRY_DELETE);
+					changes.add(index.toIndexPath(newFile), StandardWatchEventKinds.ENTRY_CREATE);
+					container.update(changes.build());
+				} catch (final IOException e) {
+					final JOptionPane op = new JOptionPane("Could not rename " + file.getFileName() + " to " + newFile.getFileName() + ".\n"
+							+ "The error message was: " + e.getLocalizedMessage(), JOptionPane.ERROR_MESSAGE, JOptionPane.DEFAULT_OPTION);
+					op.createDialog("Error").setVisible(true);
+				}
+			} else if (Utils.rename(file, newFile)) {
+				Main.getDirectoryIndex().changed(file);
+				Main.getDirectoryIndex().changed(newFile);
+				container.reload();
+			}
 		}
 	}
 	
-	public final static File getFileToRun(final File file, final boolean useFolder) {
+	public final static Path getFileToRun(final Path file, final boolean useFolder) {
 		if (!useFolder)
 			return file;
-		if (file.isDirectory()) {
-			// for a directory, return the first file in the directory. if there are no files (only dirs), repeat in the first directory
-			final @NonNull File[] contents = file.listFiles();
-			assert contents != null;
-			Arrays.sort(contents);
-			for (final File f : contents) {
-				if (f.isHidden() || f.getName().startsWith(".") || f.isDirectory())
-					continue;
-				return getFileToRun(f, true);
-			}
-			if (contents.length > 0)
-				return getFileToRun(contents[0], true);
+		// for a directory, this is the first file in the directory. if there are no files (only dirs), it's the target of the first directory
+		return file.resolve(Main.getDirectoryIndex().runTargets.resolve(file));
+	}
+	
+	/**
+	 * Updates the image of this icon after {@link #fileToRun} changed. The current image stays shown until the new one is loaded.
+	 */
+	void refresh() {
+		final DirectoryIndex.Entry target = Main.getDirectoryIndex().get(fileToRun);
+		final long newLastModified = target == null ? -1 : target.lastModified;
+		final long newSize = target == null ? -1 : target.size;
+		if (newLastModified == lastModified && newSize == size)
+			return;
+		lastModified = newLastModified;
+		size = newSize;
+		final IconLoader.Job job = this.job;
+		if (job != null && job.cancel()) {
+			this.job = null;
+			extracting = false;
+		}
+		if (!extracting)
+			updateIcon();
+	}
+	
+	/**
+	 * @return The icon of {@link #fileToRun} in the most recent {@link DesktopModel}
+	 */
+	public @Nullable Image getIcon() {
+		return DesktopModel.current().getIcon(fileToRun);
+	}
+	
+	@Override
+	public void removeNotify() {
+		super.removeNotify();
+		// don't load the icon of a removed icon. if it's added again, addNotify() loads it again.
+		final IconLoader.Job job = this.job;
+		if (job != null && job.cancel()) {
+			this.job = null;
+			extracting = false;
 		}
-		return file;
 	}
 	
-	private final File getIconCacheFile() {
-		return fileContainer.window.metaFolder.toPath().resolve("iconcache").resolve(fileContainer.window.folder.toPath().relativize(fileToRun.toPath().resolveSibling(fileToRun.getName() + ".png"))).toFile();
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		// the desktop model drops the icons of folders that are not shown any more, e.g. of a closed dropdown
+		if (getIcon() == null && !extracting) {
+			final Image cached = IconCache.INSTANCE.get(fileToRun, lastModified);
+			if (cached != null)
+				DesktopModel.update(m -> m.withIcon(fileToRun, cached));
+			else
+				updateIcon();
+		}
 	}
 	
-	public final static @Nullable Path fileFromIconCacheFile(final BDWindow window, final Path iconCacheFile) {
-		final String name = iconCacheFile.getFileName().toString();
-		if (!name.endsWith(".png"))
-			return null;
-		return window.folder.toPath().resolve(window.metaFolder.toPath().resolve("iconcache").relativize(iconCacheFile.resolveSibling(name.substring(0, name.length() - 4))));
+	private volatile boolean extracting = false;
+	private volatile IconLoader.@Nullable Job job = null;
+	
+	/**
+	 * Identifies how icons are extracted: the version of {@link #extractIcon()} and of the Java runtime, whose shell icon code may differ.
+	 * Stored icons extracted differently are extracted again.
+	 */
+	private final static int ICON_PROVIDER_VERSION = ("1/" + System.getProperty("java.version")).hashCode();
+	
+	/**
+	 * Stored icons are extracted again in the background once they haven't been checked for this long, as icons can change without their file changing (e.g. the target of a link was updated).
+	 */
+	private final static long REVALIDATE_AFTER_MS = 24 * 60 * 60 * 1000;
+	/**
+	 * At most one icon is revalidated per this many milliseconds, so that revalidation never competes with loading icons that are actually missing
+	 */
+	private final static long REVALIDATION_INTERVAL_MS = 2000;
+	
+	private final static Queue<FileIcon> toRevalidate = new ConcurrentLinkedQueue<>();
+	private final static Debouncer.Task revalidator = Debouncer.SHARED.create(REVALIDATION_INTERVAL_MS, REVALIDATION_INTERVAL_MS, () -> IconLoader.INSTANCE.submit(IconLoader.Priority.PREFETCH, FileIcon::revalidateNext));
+	
+	private final static LongAdder extractions = new LongAdder();
+	
+	/**
+	 * @return How many icons were extracted (and encoded) since startup. Stays at zero if all stored icons are up to date.
+	 */
+	public static long getExtractions() {
+		return extractions.sum();
+	}
+	
+	private static void revalidateNext() {
+		FileIcon icon;
+		while ((icon = toRevalidate.poll()) != null) {
+			if (!icon.isDisplayable() || icon.extracting) // removed, or already being extracted anyway
+				continue;
+			icon.extractIcon();
+			break;
+		}
+		if (!toRevalidate.isEmpty())
+			revalidator.trigger();
 	}
 	
 	private final void updateIcon() {
+		// icons are published in the desktop model and only painted once the EDT has picked up the new model
+		Image cached = IconCache.INSTANCE.get(fileToRun, lastModified);
+		final IconStore store = Main.getIconStore();
+		final IconStore.Record record = store != null ? store.getRecord(fileToRun) : null;
+		if (cached == null && getIcon() == null && store != null && record != null) {
+			// files with the same icon share a single decoded image
+			final String hash = record.hash;
+			cached = IconCache.INSTANCE.get(hash);
+			if (cached == null) {
+				final byte[] data = store.get(fileToRun);
+				if (data != null) {
+					try {
+						cached = ImageIO.read(new ByteArrayInputStream(data));
+					} catch (final IOException e) {}
+				}
+			}
+			if (cached != null && store.getRecord(fileToRun) == record) // not replaced in the meantime
+				cached = IconCache.INSTANCE.put(fileToRun, lastModified, hash, cached);
+		}
+		if (cached != null) {
+			final Image icon = cached;
+			DesktopModel.update(m -> m.withIcon(fileToRun, icon));
+		}
+		// the stored icon is up to date if the file didn't change since it was extracted
+		if ((cached != null || getIcon() != null) && record != null && record.matches(size, lastModified, ICON_PROVIDER_VERSION)) {
+			if (System.currentTimeMillis() - record.checked > REVALIDATE_AFTER_MS) {
+				toRevalidate.add(this);
+				revalidator.trigger();
+			}
+			return;
+		}
+		extracting = true;
+		job = IconLoader.INSTANCE.submit(fileContainer.getIconPriority(), () -> {
+			try {
+				extractIcon();
+			} finally {
+				extracting = false;
+				job = null;
+			}
+		});
+	}
+	
+	private final void extractIcon() {
+		if (fileToRun.getFileSystem() != FileSystems.getDefault()) // only real files have shell icons
+			return;
+		if (!Files.exists(fileToRun))
+			return;
+		extractions.increment();
+		Image icon = null;
 		try {
-			icon = ImageIO.read(getIconCacheFile());
-		} catch (final IOException e) {}
-		Main.threadPool.execute(() -> {
-			if (!fileToRun.exists())
-				return;
+			icon = ShellFolder.getShellFolder(fileToRun.toFile()).getIcon(true);
+		} catch (final Exception e2) {
+			e2.printStackTrace();
+			final Icon ii = FileSystemView.getFileSystemView().getSystemIcon(fileToRun.toFile());
+			if (ii != null && ii instanceof ImageIcon)
+				icon = ((ImageIcon) ii).getImage();
+		}
+//			System.out.println(fi.icon.getClass());
+//			System.out.println(Arrays.asList(fi.icon.getClass().getDeclaredMethods()));
+		if (icon != null) {
+			// icons are identified by their encoded data, so that files with the same icon share it in the cache and in the store
+			final byte[] data;
 			try {
-				icon = ShellFolder.getShellFolder(fileToRun).getIcon(true);
-				repaint();
-			} catch (final Exception e2) {
-				e2.printStackTrace();
-				final Icon ii = FileSystemView.getFileSystemView().getSystemIcon(fileToRun);
-				if (ii != null && ii instanceof ImageIcon)
-					icon = ((ImageIcon) ii).getImage();
-				repaint();
+				final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
+				ImageIO.write(toRenderedImage(icon), "png", dataStream);
+				data = dataStream.toByteArray();
+			} catch (final IOException e) {
+				e.printStackTrace();
+				return;
 			}
-//				System.out.println(fi.icon.getClass());
-//				System.out.println(Arrays.asList(fi.icon.getClass().getDeclaredMethods()));
-			if (icon != null) {
-				// Save icon to cache, but only if the file doesn't exist yet or has a different content.
+			final String hash = IconStore.hash(data);
+			final Image newIcon = IconCache.INSTANCE.put(fileToRun, lastModified, hash, icon);
+			DesktopModel.update(m -> m.withIcon(fileToRun, newIcon));
+			// Save icon to the store. If it's unchanged, this only records that it was checked and is up to date.
+			final IconStore store = Main.getIconStore();
+			if (store != null) {
 				try {
-					final File iconCacheFile = getIconCacheFile();
-					iconCacheFile.getParentFile().mkdirs();
-					final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-					assert icon != null;
-					ImageIO.write(toRenderedImage(icon), "png", dataStream);
-					final byte[] data = dataStream.toByteArray();
-					byte[] existingData = null;
-					try {
-						existingData = Files.readAllBytes(iconCacheFile.toPath());
-					} catch (final IOException e) {}
-					if (!Arrays.equals(data, existingData)) {
+					final IconStore.Record record = store.getRecord(fileToRun);
+					if (record == null || !record.hash.equals(hash))
 						System.out.println("saving cached icon for " + file);
-						Files.write(iconCacheFile.toPath(), data);
-					}
+					store.put(fileToRun, data, size, lastModified, ICON_PROVIDER_VERSION);
 				} catch (final IOException e) {
 					e.printStackTrace();
 				}
 			}
-		});
+		}
 //		final SHFILEINFO[] info = {new SHFILEINFO()};
 //		Shell32.INSTANCE.SHGetFileInfo(file.getAbsolutePath(), Shell32.FILE_ATTRIBUTE_NORMAL, info, info[0].size(), Shell32.SHGFI_ICONLOCATION | Shell32.SHGFI_USEFILEATTRIBUTES);
 //		final int iconindex = info[0].iIcon;
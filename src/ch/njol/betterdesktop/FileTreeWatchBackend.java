@@ -0,0 +1,80 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import com.sun.nio.file.ExtendedWatchEventModifier;
+
+/**
+ * Watches a whole directory tree with a single registration. Only supported by the Windows watch service.
+ */
+public class FileTreeWatchBackend implements WatchBackend {
+	
+	private final Path root;
+	private final WatchService watcher;
+	private volatile boolean failed = false;
+	
+	/**
+	 * @throws UnsupportedOperationException if the file system does not support watching whole file trees
+	 */
+	public FileTreeWatchBackend(final Path root) throws IOException {
+		this.root = root;
+		watcher = root.getFileSystem().newWatchService();
+		try {
+			root.register(watcher, WATCHED_KINDS, ExtendedWatchEventModifier.FILE_TREE);
+		} catch (final UnsupportedOperationException | IOException e) {
+			watcher.close();
+			throw e;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public void poll(final EventSink sink) throws InterruptedException {
+		final WatchKey watchKey = watcher.take();
+		for (final WatchEvent<?> event : watchKey.pollEvents()) {
+			final Path changed = (Path) event.context();
+			if (changed == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				sink.overflow(root);
+				continue;
+			}
+			sink.fileChanged(root.resolve(changed), (Kind<Path>) event.kind());
+		}
+		if (!watchKey.reset())
+			failed = true;
+	}
+	
+	@Override
+	public boolean hasFailed() {
+		return failed;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+	
+}
@@ -19,183 +19,420 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package ch.njol.betterdesktop;
 
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.sun.nio.file.ExtendedWatchEventModifier;
+import org.eclipse.jdt.annotation.Nullable;
 
 public class FileWatcher {
 	
 	public interface FileListener {
 		public void fileChanged(Path path, Kind<Path> kind);
+		
+		/**
+		 * Called if events for this listener were dropped, e.g. because it could not keep up with them.
+		 * 
+		 * @param startPath The path this listener was added with
+		 */
+		public default void eventsLost(final Path startPath) {}
+		
+		/**
+		 * Called when the file watcher this listener was added to is closed. Not called if the listener is removed.
+		 */
+		public default void watcherClosed() {}
 	}
 	
 	/**
-	 * Listens for file updates, but consolidates events inside a directory into single events.
+	 * Listens for file updates, but consolidates events inside a directory into single {@link ChangeSet}s.
 	 */
-	public abstract static class DirectoryListener implements FileListener, Comparable<DirectoryListener> {
+	public abstract static class DirectoryListener implements FileListener {
 		
-		private final long delayMS;
+		private final Debouncer.Task task;
+		
+		// guarded by this listener
+		private ChangeSet.Builder changes = new ChangeSet.Builder();
 		
 		/**
 		 * @param delayMS The maximum time interval in milliseconds between events to be consolidated into a single event
 		 */
 		public DirectoryListener(final long delayMS) {
-			this.delayMS = delayMS;
+			this(delayMS, 10 * delayMS);
 		}
 		
-		private volatile long nextUpdate;
-		
-		@Override
-		public final int compareTo(final DirectoryListener other) {
-			if (other == this)
-				return 0;
-			final long tu = nextUpdate, ou = other.nextUpdate;
-			return tu < ou ? -1 : tu > ou ? 1 : 0;
+		/**
+		 * @param delayMS The maximum time interval in milliseconds between events to be consolidated into a single event
+		 * @param maxWaitMS The maximum time in milliseconds that events are consolidated if they keep coming in
+		 */
+		public DirectoryListener(final long delayMS, final long maxWaitMS) {
+			task = Debouncer.SHARED.create(delayMS, maxWaitMS, () -> {
+				final ChangeSet changeSet;
+				synchronized (this) {
+					changeSet = changes.build();
+					changes = new ChangeSet.Builder();
+				}
+				if (!changeSet.isEmpty())
+					directoryChanged(changeSet);
+			});
 		}
 		
 		@Override
 		public final void fileChanged(final Path path, final Kind<Path> kind) {
 			if (ignoreChange(path))
 				return;
-			synchronized (listenersToUpdate) { // make this section atomic with regard to the one in the thread
-				listenersToUpdate.remove(this);
-				nextUpdate = System.currentTimeMillis() + delayMS;
-				listenersToUpdate.add(this);
+			synchronized (this) {
+				changes.add(path, kind);
+			}
+			task.trigger();
+		}
+		
+		@Override
+		public final void eventsLost(final Path startPath) {
+			synchronized (this) {
+				changes.eventsLost();
 			}
-			thread.interrupt();
+			task.trigger();
 		}
 		
 		public boolean ignoreChange(final Path path) {
 			return false;
 		}
 		
-		public abstract void directoryChanged();
+		public abstract void directoryChanged(ChangeSet changes);
 		
-		private static PriorityBlockingQueue<DirectoryListener> listenersToUpdate = new PriorityBlockingQueue<>();
-		
-		// a single thread should be enough - this program doesn't listen to hundreds of folders
-		private static Thread thread = new Thread() {
-			@Override
-			public void run() {
-				while (true) {
-					final DirectoryListener next;
-					
-					try {
-						next = listenersToUpdate.take();
-					} catch (final InterruptedException e) {
-						continue;
-					}
-					
-					// if there is an event, wait until its desired update time or until notified again, in which case restart the whole loop
-					// (maybe another listener got an earlier time now that the one we're waiting for if both got new events)
-					final long nextUpdate = next.nextUpdate;
-					final long toWait = nextUpdate - System.currentTimeMillis();
-					if (toWait > 0) {
-						synchronized (this) {
-							try {
-								Thread.sleep(toWait);
-							} catch (final InterruptedException e) {}
-						}
-						if (nextUpdate > System.currentTimeMillis()) {
-							// if we're interrupted early, re-add the listener to the queue and restart with taking the earliest listener (which may be this one or not)
-							synchronized (listenersToUpdate) {
-								// the listener can already be in the queue if an event happened while waiting
-								if (!listenersToUpdate.contains(next))
-									listenersToUpdate.add(next);
-							}
-							continue;
-						}
-					}
-					
-					next.directoryChanged();
-				}
-			}
-		};
-		static {
-			thread.setDaemon(true);
-			thread.start();
+		/**
+		 * Drops any pending (consolidated) event
+		 */
+		public void cancel() {
+			task.cancel();
 		}
+		
 	}
 	
-	private final static class ListenerAndPath {
-		private final Path startPath;
-		private final FileListener listener;
-		
-		public ListenerAndPath(final Path relativePath, final FileListener listener) {
-			startPath = relativePath;
-			this.listener = listener;
-		}
+	/**
+	 * Capacity of listener mailboxes if not specified otherwise
+	 */
+	public final static int DEFAULT_MAILBOX_CAPACITY = 1024;
+	
+	/**
+	 * Shared by the listeners of all file watchers
+	 */
+	private final static ThreadPoolExecutor listenerExecutor = new ThreadPoolExecutor(4, 4, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), r -> {
+		final Thread t = new Thread(r, "File listener");
+		t.setDaemon(true);
+		return t;
+	});
+	static {
+		listenerExecutor.allowCoreThreadTimeOut(true);
 	}
 	
-	private final ConcurrentLinkedDeque<ListenerAndPath> listeners = new ConcurrentLinkedDeque<>();
+	private final PathTrie<ListenerMailbox> listeners = new PathTrie<>();
+	private final ConcurrentHashMap<FileListener, ListenerMailbox> mailboxes = new ConcurrentHashMap<>();
 	
+	/**
+	 * Adds a listener with a mailbox of the {@link #DEFAULT_MAILBOX_CAPACITY default capacity} that makes the listener rescan on overflow.
+	 */
 	public void addListener(final Path startPath, final FileListener listener) {
-		listeners.add(new ListenerAndPath(toCanonicalPath(startPath), listener));
+		addListener(startPath, listener, DEFAULT_MAILBOX_CAPACITY, ListenerMailbox.OverflowPolicy.RESCAN);
+	}
+	
+	/**
+	 * Adds a listener that will be notified of changes to the given path and anything inside it. Events are queued in a mailbox for the listener,
+	 * and delivered on a separate thread.
+	 * <p>
+	 * A listener can only be added once.
+	 */
+	public void addListener(final Path startPath, final FileListener listener, final int mailboxCapacity, final ListenerMailbox.OverflowPolicy overflowPolicy) {
+		addListener(startPath, listener, mailboxCapacity, overflowPolicy, false);
+	}
+	
+	final ListenerMailbox addListener(final Path startPath, final FileListener listener, final int mailboxCapacity, final ListenerMailbox.OverflowPolicy overflowPolicy, final boolean demandDriven) {
+		final Path path = toCanonicalPath(startPath);
+		final ListenerMailbox mailbox = new ListenerMailbox(listener, path, mailboxCapacity, overflowPolicy, listenerExecutor, demandDriven);
+		if (mailboxes.putIfAbsent(listener, mailbox) != null)
+			throw new IllegalArgumentException("Listener " + listener + " has already been added");
+		listeners.add(path, mailbox);
+		return mailbox;
+	}
+	
+	/**
+	 * Creates a publisher of all changes to the given path and anything inside it. Each subscriber gets its own {@link ListenerMailbox mailbox},
+	 * which only delivers events as they are requested. If a subscriber falls too far behind, it receives an {@link PathEvent#isOverflow() overflow} event instead.
+	 */
+	public PathEventPublisher publisher(final Path startPath) {
+		return new PathEventPublisher(this, toCanonicalPath(startPath), DEFAULT_MAILBOX_CAPACITY);
+	}
+	
+	/**
+	 * Removes a listener added with {@link #addListener(Path, FileListener)}. Must be called with the same path the listener was added with.
+	 * Events still queued for the listener are dropped.
+	 */
+	public void removeListener(final Path startPath, final FileListener listener) {
+		final ListenerMailbox mailbox = mailboxes.remove(listener);
+		if (mailbox == null)
+			return;
+		listeners.remove(toCanonicalPath(startPath), mailbox);
+		mailbox.close(false);
+	}
+	
+	/**
+	 * @return The mailbox of the given listener (e.g. to get its statistics), or null if the listener has not been added to this watcher
+	 */
+	public @Nullable ListenerMailbox getMailbox(final FileListener listener) {
+		return mailboxes.get(listener);
 	}
 	
-	private final static Path toCanonicalPath(final Path path) {
+	final static Path toCanonicalPath(final Path path) {
 		try {
+			if (path.getFileSystem() != FileSystems.getDefault())
+				return path.toRealPath();
 			return path.toFile().getCanonicalFile().toPath();
 		} catch (final IOException e) {
 			return path.toAbsolutePath();
 		}
 	}
 	
-	private final WatchService watcher;
+	private final WatchBackend backend;
 	
 	private volatile boolean running = true;
 	private final Thread thread = new Thread() {
-		@SuppressWarnings("unchecked")
 		@Override
 		public void run() {
 			while (running) {
 				try {
-					final WatchKey watchKey = watcher.take();
-					for (final WatchEvent<?> event : watchKey.pollEvents()) {
-						Path changed = (Path) event.context();
-						if (changed == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
-							System.out.println("bad file watch event: " + event);
-							continue;
-						}
-						changed = watchedDirectory.resolve(changed);
-						for (final ListenerAndPath x : listeners) {
-							if (Thread.interrupted() && !running)
-								return;
-							if (changed.startsWith(x.startPath)) {
-								x.listener.fileChanged(changed, (Kind<Path>) event.kind());
-							}
-						}
-					}
-					watchKey.reset();
-				} catch (final InterruptedException e) {}
+					backend.poll(sink);
+				} catch (final InterruptedException e) {} catch (final ClosedWatchServiceException e) {
+					return;
+				}
 			}
 		}
 	};
 	
+	private final WatchBackend.EventSink sink = new WatchBackend.EventSink() {
+		@Override
+		public void fileChanged(final Path changed, final Kind<Path> kind) {
+			if (!running || !filter.accepts(watchedDirectory, changed))
+				return;
+			snapshot.eventReceived(changed, kind);
+			index.fileChanged(changed, kind); // also for our own changes
+			if (WriteJournal.INSTANCE.isEcho(changed, kind))
+				return;
+			dispatch(changed, kind);
+		}
+		
+		@Override
+		public void overflow(final Path directory) {
+			System.out.println("File watch events lost in " + directory + ", scheduling a rescan");
+			index.invalidateTree(directory);
+			pendingRescans.add(directory);
+			scheduleRescan();
+		}
+	};
+	
+	private void dispatch(final Path changed, final Kind<Path> kind) {
+		listeners.forEachPrefix(changed, mailbox -> mailbox.post(changed, kind));
+	}
+	
+	// overflow recovery
+	
+	/**
+	 * Minimum time between two rescans of the file tree after lost events
+	 */
+	public final static long MIN_RESCAN_INTERVAL_MS = 2000;
+	
+	private final TreeSnapshot snapshot;
+	private final ConcurrentSkipListSet<Path> pendingRescans = new ConcurrentSkipListSet<>();
+	private final AtomicBoolean rescanScheduled = new AtomicBoolean();
+	private volatile long lastRescanEnd = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(MIN_RESCAN_INTERVAL_MS);
+	private final ScheduledExecutorService rescanner = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread t = new Thread(r, "File watcher rescanner");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/**
+	 * Schedules a rescan of the pending directories, but no earlier than {@link #MIN_RESCAN_INTERVAL_MS} after the last rescan finished
+	 */
+	private void scheduleRescan() {
+		if (!pendingRescans.isEmpty() && rescanScheduled.compareAndSet(false, true)) {
+			final long delayNanos = Math.max(0, lastRescanEnd + TimeUnit.MILLISECONDS.toNanos(MIN_RESCAN_INTERVAL_MS) - System.nanoTime());
+			rescanner.schedule(this::rescan, delayNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	private final WatchBackend.EventSink rescanSink = new WatchBackend.EventSink() {
+		@Override
+		public void fileChanged(final Path path, final Kind<Path> kind) {
+			if (!running)
+				return;
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE)
+				backend.register(path);
+			index.fileChanged(path, kind);
+			dispatch(path, kind);
+		}
+		
+		@Override
+		public void overflow(final Path directory) {}
+	};
+	
+	/**
+	 * Rescans all directories that lost events, and sends listeners the events they missed.
+	 */
+	private void rescan() {
+		final List<Path> roots = new ArrayList<>();
+		Path dir;
+		outer: while ((dir = pendingRescans.pollFirst()) != null) {
+			for (final Path root : roots) {
+				if (dir.startsWith(root))
+					continue outer;
+			}
+			roots.add(dir);
+		}
+		for (final Path root : roots) {
+			System.out.println("Rescanning " + root);
+			try {
+				snapshot.rescan(root, rescanSink);
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+		// rate limit: the next rescan waits, even if more events got lost in the meantime
+		lastRescanEnd = System.nanoTime();
+		rescanScheduled.set(false);
+		scheduleRescan();
+	}
+	
 	public final Path watchedDirectory;
+	private volatile WatchFilter filter;
+	
+	/**
+	 * An index of the watched directories that is kept up to date by this watcher
+	 */
+	public final DirectoryIndex index = new DirectoryIndex(this);
 	
 	public FileWatcher(final Path watchedDirectory) throws IOException {
+		this(watchedDirectory, WatchFilter.ACCEPT_ALL);
+	}
+	
+	/**
+	 * @param filter Changes excluded by this filter are dropped before they reach any listener
+	 */
+	public FileWatcher(final Path watchedDirectory, final WatchFilter filter) throws IOException {
+		this(watchedDirectory, filter, null);
+	}
+	
+	/**
+	 * @param known The contents of the watched directory as saved earlier (e.g. in a previous run of Motunautr), or null if unknown.
+	 *            If given, the {@link #index} starts out with the saved listings and run targets, and listeners are sent events for everything that changed since then as soon as the actual contents have been read.
+	 */
+	public FileWatcher(final Path watchedDirectory, final WatchFilter filter, final @Nullable DesktopSnapshot known) throws IOException {
+		this(watchedDirectory, WatchBackend.create(toCanonicalPath(watchedDirectory), filter), filter, known);
+	}
+	
+	/**
+	 * Creates a file watcher using the given backend, which must already be watching the given directory.
+	 */
+	public FileWatcher(final Path watchedDirectory, final WatchBackend backend, final WatchFilter filter, final @Nullable DesktopSnapshot known) {
 		this.watchedDirectory = toCanonicalPath(watchedDirectory);
-		watcher = FileSystems.getDefault().newWatchService();
-		watchedDirectory.register(watcher, new Kind[] {StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY}, ExtendedWatchEventModifier.FILE_TREE);
+		this.backend = backend;
+		this.filter = filter;
+		snapshot = new TreeSnapshot(this.watchedDirectory, filter);
+		if (known != null) {
+			index.preload(known.listings);
+			index.runTargets.preload(known.runTargets);
+			for (final List<DirectoryIndex.Entry> listing : known.listings.values()) {
+				for (final DirectoryIndex.Entry e : listing)
+					snapshot.addKnown(e.path, e.directory, e.lastModified, e.size);
+			}
+		}
 		thread.setDaemon(true);
 		thread.start();
+		rescanner.execute(() -> {
+			final long start = System.nanoTime();
+			try {
+				snapshot.rescan(this.watchedDirectory, known == null ? null : rescanSink);
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			if (known != null)
+				System.out.println("Reconciled known contents of " + this.watchedDirectory + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+		});
+	}
+	
+	public WatchFilter getFilter() {
+		return filter;
+	}
+	
+	/**
+	 * Limits how deep changes inside the given directory are watched, overriding the limit of the filter this watcher was created with.
+	 * Nothing deeper than this is watched at all if the backend allows it, and changes deeper than this are dropped before they reach any listener.
+	 * <p>
+	 * If the limit is raised, listeners get creation events for everything that is now visible to them, as if it had just been created.
+	 * 
+	 * @param directory A directory inside the watched directory
+	 * @param maxDepth The maximum depth relative to the given directory, i.e. its direct children have a depth of 1
+	 */
+	public synchronized void setMaxDepth(final Path directory, final int maxDepth) {
+		if (!running)
+			return;
+		final Path dir = toCanonicalPath(directory);
+		if (!dir.startsWith(watchedDirectory) || dir.equals(watchedDirectory))
+			throw new IllegalArgumentException(directory + " is not inside " + watchedDirectory);
+		final WatchFilter newFilter = filter.withMaxDepth(watchedDirectory.relativize(dir), maxDepth);
+		if (newFilter != filter)
+			filterChanged(newFilter, dir);
+	}
+	
+	/**
+	 * Removes the limit set by {@link #setMaxDepth(Path, int)} for the given directory, e.g. because the directory was deleted or renamed.
+	 * Does nothing if the directory is not inside the watched directory.
+	 */
+	public synchronized void clearMaxDepth(final Path directory) {
+		if (!running)
+			return;
+		final Path dir = toCanonicalPath(directory);
+		if (!dir.startsWith(watchedDirectory) || dir.equals(watchedDirectory))
+			return;
+		final WatchFilter newFilter = filter.withoutMaxDepth(watchedDirectory.relativize(dir));
+		if (newFilter != filter)
+			filterChanged(newFilter, dir);
+	}
+	
+	// must be called while holding the lock
+	private void filterChanged(final WatchFilter newFilter, final Path dir) {
+		filter = newFilter;
+		snapshot.setFilter(newFilter);
+		rescanner.execute(() -> backend.filterChanged(newFilter, dir));
+		if (!Files.isDirectory(dir)) // gone, so there's nothing to catch up on
+			return;
+		index.invalidateTree(dir);
+		pendingRescans.add(dir);
+		scheduleRescan();
 	}
 	
 	public void close() {
 		running = false;
 		thread.interrupt();
+		rescanner.shutdownNow();
 		listeners.clear();
+		for (final ListenerMailbox mailbox : mailboxes.values())
+			mailbox.close(true);
+		mailboxes.clear();
 		try {
-			watcher.close();
+			backend.close();
 		} catch (final IOException e) {
 			e.printStackTrace();
 		}
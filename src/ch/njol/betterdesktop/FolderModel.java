@@ -0,0 +1,97 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The icons a {@link BDFileContainer} should show for a folder. Immutable, so that it can be built on a background thread and then handed to the EDT.
+ */
+public final class FolderModel {
+	
+	/**
+	 * A file or folder in the folder.
+	 */
+	public final static class Item {
+		public final Path file;
+		public final Path fileToRun;
+		
+		public Item(final Path file, final Path fileToRun) {
+			this.file = file;
+			this.fileToRun = fileToRun;
+		}
+	}
+	
+	private final static AtomicLong versions = new AtomicLong();
+	
+	/**
+	 * @return A new version number, to be taken before reading a folder. Models with a higher version reflect the folder at a later time.
+	 */
+	public static long nextVersion() {
+		return versions.incrementAndGet();
+	}
+	
+	public final Path folder;
+	public final long version;
+	public final List<Item> items;
+	
+	/**
+	 * Whether there are more files than {@link #items}
+	 */
+	public final boolean truncated;
+	
+	public FolderModel(final Path folder, final long version, final List<Item> items, final boolean truncated) {
+		this.folder = folder;
+		this.version = version;
+		this.items = Collections.unmodifiableList(items);
+		this.truncated = truncated;
+	}
+	
+	/**
+	 * Reads the given folder. May access the file system, so this should not be called on the EDT unless the folder is known to be in the index already.
+	 * 
+	 * @param useFolder Whether folders are run by running a file inside them (see {@link FileIcon#getFileToRun(Path, boolean)})
+	 * @param maxFiles The maximum number of items
+	 * @param version The {@link #nextVersion() version} of the new model
+	 */
+	public static FolderModel read(final DirectoryIndex index, final Path folder, final boolean useFolder, final int maxFiles, final long version) {
+		final List<DirectoryIndex.Entry> contents = index.list(folder);
+		final List<Item> items = new ArrayList<>();
+		boolean truncated = false;
+		if (contents != null) {
+			for (int i = 0; i < contents.size(); i++) {
+				final DirectoryIndex.Entry e = contents.get(i);
+				if (e.hidden || e.name.startsWith("."))
+					continue;
+				final Path f = folder.resolve(e.name);
+				items.add(new Item(f, FileIcon.getFileToRun(f, useFolder)));
+				if (i + 1 == maxFiles && i != contents.size() - 1) {
+					truncated = true;
+					break;
+				}
+			}
+		}
+		return new FolderModel(folder, version, items, truncated);
+	}
+	
+}
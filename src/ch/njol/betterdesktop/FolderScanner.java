@@ -0,0 +1,104 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Reads groups into a {@link DirectoryIndex} in parallel, so that a main folder on a slow disk or network drive is read with several requests in flight instead of one after another.
+ */
+public abstract class FolderScanner {
+	
+	/**
+	 * How many directories are read at the same time at most
+	 */
+	public final static int PARALLELISM = 8;
+	
+	private final static ForkJoinPool pool = new ForkJoinPool(PARALLELISM, p -> {
+		final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+		t.setName("Folder scanner " + t.getPoolIndex());
+		return t;
+	}, null, true);
+	
+	/**
+	 * Reads the given groups and the folders inside them (to find their run targets) in parallel.
+	 * 
+	 * @param groupScanned Called for every group as soon as it has been read, on one of the scanner's threads. Groups that are read faster are reported earlier.
+	 */
+	public static void scanGroups(final DirectoryIndex index, final Collection<Path> groups, final Consumer<Path> groupScanned) {
+		for (final Path group : groups)
+			pool.execute(new GroupScan(index, group, groupScanned));
+	}
+	
+	private final static class GroupScan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final DirectoryIndex index;
+		private final Path group;
+		private final Consumer<Path> groupScanned;
+		
+		public GroupScan(final DirectoryIndex index, final Path group, final Consumer<Path> groupScanned) {
+			this.index = index;
+			this.group = group;
+			this.groupScanned = groupScanned;
+		}
+		
+		@Override
+		protected void compute() {
+			try {
+				final List<DirectoryIndex.Entry> contents = index.list(group);
+				if (contents != null) {
+					final List<FolderScan> folders = new ArrayList<>();
+					for (final DirectoryIndex.Entry e : contents) {
+						if (e.directory)
+							folders.add(new FolderScan(index, e));
+					}
+					invokeAll(folders);
+				}
+			} finally {
+				groupScanned.accept(group);
+			}
+		}
+	}
+	
+	private final static class FolderScan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final DirectoryIndex index;
+		private final DirectoryIndex.Entry folder;
+		
+		public FolderScan(final DirectoryIndex index, final DirectoryIndex.Entry folder) {
+			this.index = index;
+			this.folder = folder;
+		}
+		
+		@Override
+		protected void compute() {
+			index.runTargets.resolve(folder.path);
+		}
+	}
+	
+}
@@ -0,0 +1,186 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.awt.Image;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Decoded icons shared by all windows, dropdowns, and drag images, so that an icon that is shown again (e.g. when a dropdown is opened again or a group is reloaded)
+ * does not have to be read and decoded again.
+ * <p>
+ * Icons are keyed by the file they are the icon of and that file's modification time, so a changed file does not get its old icon.
+ * Each such key references an icon by the {@link IconStore#hash(byte[]) hash} of its encoded data, so that identical icons of different files are only decoded and kept once.
+ * The least recently used keys are evicted once all icons together take up more memory than {@link Settings#iconCacheSize} allows,
+ * and an icon is dropped once no key references it any more.
+ */
+public class IconCache {
+	
+	public final static IconCache INSTANCE = new IconCache();
+	static {
+		Settings.INSTANCE.iconCacheSize.addListener(mb -> INSTANCE.setMaxBytes(mb * 1024L * 1024L));
+	}
+	
+	private final static class Key {
+		private final Path file;
+		private final long lastModified;
+		
+		public Key(final Path file, final long lastModified) {
+			this.file = file;
+			this.lastModified = lastModified;
+		}
+		
+		@Override
+		public boolean equals(final @Nullable Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			final Key other = (Key) obj;
+			return lastModified == other.lastModified && file.equals(other.file);
+		}
+		
+		@Override
+		public int hashCode() {
+			return file.hashCode() * 31 + Long.hashCode(lastModified);
+		}
+	}
+	
+	private final static class Shared {
+		private final Image icon;
+		private int references = 0;
+		
+		public Shared(final Image icon) {
+			this.icon = icon;
+		}
+	}
+	
+	// guarded by this cache
+	private final LinkedHashMap<Key, String> references = new LinkedHashMap<>(256, 0.75f, true); // in access order
+	private final Map<String, Shared> icons = new HashMap<>(); // by hash
+	private long bytes = 0;
+	private long maxBytes = 32L * 1024 * 1024;
+	
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+	
+	/**
+	 * @return The icon of the given file, or null if it is not cached or the file was modified since
+	 */
+	public @Nullable Image get(final Path file, final long lastModified) {
+		final Shared icon;
+		synchronized (this) {
+			final String hash = references.get(new Key(file, lastModified));
+			icon = hash == null ? null : icons.get(hash);
+		}
+		(icon != null ? hits : misses).increment();
+		return icon != null ? icon.icon : null;
+	}
+	
+	/**
+	 * @return The icon with the given hash if any file currently references it, or null
+	 */
+	public synchronized @Nullable Image get(final String hash) {
+		final Shared icon = icons.get(hash);
+		return icon != null ? icon.icon : null;
+	}
+	
+	/**
+	 * Caches the icon of the given file.
+	 * 
+	 * @param hash The {@link IconStore#hash(byte[]) hash} of the icon's encoded data
+	 * @return The icon to use for the file: the given one, or an equal one that another file already references
+	 */
+	public synchronized Image put(final Path file, final long lastModified, final String hash, final Image icon) {
+		Shared shared = icons.get(hash);
+		if (shared == null) {
+			shared = new Shared(icon);
+			icons.put(hash, shared);
+			bytes += sizeOf(icon);
+		}
+		shared.references++;
+		final String old = references.put(new Key(file, lastModified), hash);
+		if (old != null)
+			release(old);
+		evict();
+		return shared.icon;
+	}
+	
+	private void release(final String hash) {
+		final Shared shared = icons.get(hash);
+		if (shared != null && --shared.references <= 0) {
+			icons.remove(hash);
+			bytes -= sizeOf(shared.icon);
+		}
+	}
+	
+	public synchronized void setMaxBytes(final long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+	
+	// the most recently used key is always kept. evicting a key only frees memory if it was the last reference to its icon.
+	private void evict() {
+		final Iterator<String> iter = references.values().iterator();
+		while (bytes > maxBytes && references.size() > 1) {
+			final String hash = iter.next();
+			iter.remove();
+			release(hash);
+			evictions.increment();
+		}
+	}
+	
+	/**
+	 * @return The approximate heap size of the decoded pixels of the given icon
+	 */
+	private static long sizeOf(final Image icon) {
+		final int width = icon.getWidth(null), height = icon.getHeight(null);
+		return width <= 0 || height <= 0 ? 32 * 32 * 4 : 4L * width * height;
+	}
+	
+	public synchronized int size() {
+		return icons.size();
+	}
+	
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	public long getEvictions() {
+		return evictions.sum();
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "IconCache[" + references.size() + " files, " + icons.size() + " distinct icons, " + bytes / 1024 + " of " + maxBytes / 1024 + " KiB, " + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions]";
+	}
+	
+}
@@ -0,0 +1,175 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs icon loading jobs on the {@link Main#threadPool thread pool}, icons of visible windows first, then icons of open dropdowns, and everything else last.
+ * <p>
+ * Every submitted job queues one runner on the thread pool, which runs whichever job has the highest priority once it gets to run.
+ * Jobs can be cancelled before they start (e.g. when their icon is removed), and promoted to a higher priority (e.g. when their icon becomes visible).
+ * A promoted job is queued again with its new priority, and the first runner to reach any of its queue entries runs it.
+ */
+public final class IconLoader {
+	
+	public enum Priority {
+		/**
+		 * Icons shown in a visible group window
+		 */
+		VISIBLE,
+		/**
+		 * Icons shown in an open dropdown
+		 */
+		DROPDOWN,
+		/**
+		 * Icons not currently shown
+		 */
+		PREFETCH;
+	}
+	
+	private final static Priority[] PRIORITIES = Priority.values();
+	
+	public final static IconLoader INSTANCE = new IconLoader(Main.threadPool);
+	
+	public final class Job {
+		
+		private final Runnable action;
+		private final long submitted = System.nanoTime();
+		private volatile Priority priority;
+		
+		/**
+		 * Set once the job is started or cancelled
+		 */
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		
+		Job(final Priority priority, final Runnable action) {
+			this.priority = priority;
+			this.action = action;
+		}
+		
+		public Priority getPriority() {
+			return priority;
+		}
+		
+		/**
+		 * Raises the priority of this job if it is lower than the given one and the job has not started yet
+		 */
+		public synchronized void promote(final Priority priority) {
+			if (claimed.get() || priority.compareTo(this.priority) >= 0)
+				return;
+			this.priority = priority;
+			queues.get(priority.ordinal()).add(this);
+		}
+		
+		/**
+		 * Prevents this job from running.
+		 * 
+		 * @return Whether the job was cancelled, i.e. it was neither started nor cancelled yet
+		 */
+		public boolean cancel() {
+			if (!claimed.compareAndSet(false, true))
+				return false;
+			cancelled.increment();
+			return true;
+		}
+		
+	}
+	
+	private final Executor executor;
+	
+	private final List<ConcurrentLinkedQueue<Job>> queues = new ArrayList<>(PRIORITIES.length);
+	
+	// per priority, by the priority a job had when it was started
+	private final LongAdder[] started = new LongAdder[PRIORITIES.length], waitNanos = new LongAdder[PRIORITIES.length];
+	private final LongAccumulator[] maxWaitNanos = new LongAccumulator[PRIORITIES.length];
+	private final LongAdder cancelled = new LongAdder();
+	
+	public IconLoader(final Executor executor) {
+		this.executor = executor;
+		for (int i = 0; i < PRIORITIES.length; i++) {
+			queues.add(new ConcurrentLinkedQueue<>());
+			started[i] = new LongAdder();
+			waitNanos[i] = new LongAdder();
+			maxWaitNanos[i] = new LongAccumulator(Math::max, 0);
+		}
+	}
+	
+	/**
+	 * Queues a job with the given priority.
+	 * 
+	 * @return The job, which can be used to cancel or promote it
+	 */
+	public Job submit(final Priority priority, final Runnable action) {
+		final Job job = new Job(priority, action);
+		queues.get(priority.ordinal()).add(job);
+		executor.execute(this::runNext);
+		return job;
+	}
+	
+	// there are at least as many runners as there are jobs that are neither started nor cancelled, so if a runner finds no job, there is none left
+	private void runNext() {
+		for (final ConcurrentLinkedQueue<Job> queue : queues) {
+			Job job;
+			while ((job = queue.poll()) != null) {
+				if (!job.claimed.compareAndSet(false, true)) // already run from another queue, or cancelled
+					continue;
+				final int priority = job.priority.ordinal();
+				final long wait = System.nanoTime() - job.submitted;
+				started[priority].increment();
+				waitNanos[priority].add(wait);
+				maxWaitNanos[priority].accumulate(wait);
+				job.action.run();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return The average time jobs that were started with the given priority waited in the queue, in milliseconds
+	 */
+	public double getAverageWaitMS(final Priority priority) {
+		final long n = started[priority.ordinal()].sum();
+		return n == 0 ? 0 : (double) waitNanos[priority.ordinal()].sum() / n / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+	
+	/**
+	 * @return The longest time a job that was started with the given priority waited in the queue, in milliseconds
+	 */
+	public long getMaxWaitMS(final Priority priority) {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos[priority.ordinal()].get());
+	}
+	
+	@Override
+	public String toString() {
+		final StringBuilder b = new StringBuilder("IconLoader[");
+		for (final Priority p : PRIORITIES)
+			b.append(p.name().toLowerCase()).append(": ").append(started[p.ordinal()].sum()).append(" jobs, ")
+					.append(String.format("%.1f", getAverageWaitMS(p))).append(" ms average wait, ").append(getMaxWaitMS(p)).append(" ms max wait; ");
+		return b.append(cancelled.sum()).append(" cancelled]").toString();
+	}
+	
+}
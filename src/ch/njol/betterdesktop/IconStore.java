@@ -0,0 +1,552 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * The encoded icons of all files in a main folder, stored in a single file in the main folder's '.motunautr' folder.
+ * <p>
+ * The file starts with two header slots, followed by icons and indices that are only ever appended. An index lists where the icon of each file is stored.
+ * Changes are committed by appending a new index and then overwriting the older header slot with a pointer to it, so a crash at any time leaves the last commit intact.
+ * Icons are read from a memory mapping of the file, so reading all icons at startup is a few large sequential reads instead of one small read per icon.
+ * <p>
+ * Icons are content-addressed: files with identical icons (e.g. many links to the same program) reference a single copy, which is dropped once no file references it any more.
+ * Each file's entry also records what its icon was extracted from, so that icons that are still up to date don't have to be extracted again.
+ * Replaced and removed icons and old indices stay in the file until it is compacted, which copies the live icons into a new file.
+ */
+public class IconStore implements Closeable {
+	
+	private final static int MAGIC = 0x4D544E49; // "MTNI"
+	private final static int VERSION = 3;
+	
+	// magic, version, sequence, index offset, index length, index CRC, slot CRC
+	private final static int SLOT_CONTENT_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 8;
+	private final static int SLOT_SIZE = 64;
+	private final static int DATA_START = 2 * SLOT_SIZE;
+	
+	private final static String PREFIX = "icons-", SUFFIX = ".pack";
+	
+	/**
+	 * Compaction only happens once at least this many bytes in the file are garbage
+	 */
+	public final static long MIN_COMPACTION_GARBAGE = 1024 * 1024;
+	
+	/**
+	 * A stored icon, and how many files use it
+	 */
+	private final static class Blob {
+		private final long offset;
+		private final int length;
+		private int references = 0; // guarded by the store
+		
+		public Blob(final long offset, final int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	/**
+	 * The stored icon of a file, and the state of the file it was extracted from
+	 */
+	public final static class Record {
+		/**
+		 * The {@link IconStore#hash(byte[]) hash} of the icon
+		 */
+		public final String hash;
+		/**
+		 * Size and modification time of the file when its icon was extracted
+		 */
+		public final long size, lastModified;
+		/**
+		 * Identifies the code that extracted the icon
+		 */
+		public final int providerVersion;
+		/**
+		 * When the icon was last extracted and found to be this one, in milliseconds since the epoch
+		 */
+		public final long checked;
+		
+		public Record(final String hash, final long size, final long lastModified, final int providerVersion, final long checked) {
+			this.hash = hash;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.providerVersion = providerVersion;
+			this.checked = checked;
+		}
+		
+		/**
+		 * @return Whether this icon was extracted from a file with the given size and modification time by the given version of the extracting code
+		 */
+		public boolean matches(final long size, final long lastModified, final int providerVersion) {
+			return lastModified != -1 && this.size == size && this.lastModified == lastModified && this.providerVersion == providerVersion;
+		}
+	}
+	
+	/**
+	 * One pack file. Replaced as a whole by compaction, so that readers always see an index together with the file it points into.
+	 */
+	private final static class Pack {
+		private final Path file;
+		private final int generation;
+		private final FileChannel channel;
+		private final ConcurrentHashMap<String, Blob> blobs = new ConcurrentHashMap<>(); // by hash
+		private final ConcurrentHashMap<String, Record> index = new ConcurrentHashMap<>();
+		
+		// guarded by the store
+		private long end = DATA_START, sequence = 0, indexLength = 0, liveBytes = 0;
+		private int nextSlot = 0;
+		private boolean dirty = false;
+		
+		private volatile @Nullable MappedByteBuffer mapped = null;
+		
+		public Pack(final Path file, final int generation) throws IOException {
+			this.file = file;
+			this.generation = generation;
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+	}
+	
+	private final Path mainFolder, folder;
+	private volatile Pack pack;
+	private final boolean isNew;
+	
+	private final LongAdder reads = new LongAdder(), writes = new LongAdder();
+	
+	private final Debouncer.Task committer = Debouncer.SHARED.create(2000, 10000, () -> Main.threadPool.execute(this::commitQuietly));
+	
+	/**
+	 * Opens the icon store of the given main folder, or creates an empty one if it doesn't exist yet or is damaged.
+	 */
+	public IconStore(final Path mainFolder) throws IOException {
+		this.mainFolder = mainFolder;
+		folder = mainFolder.resolve(".motunautr");
+		Files.createDirectories(folder);
+		try {
+			Files.setAttribute(folder, "dos:hidden", true);
+		} catch (final IOException | UnsupportedOperationException e) {}
+		
+		// use the newest intact pack, and delete all others (e.g. left over from a compaction while the old file was still mapped)
+		final List<Path> packs = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, PREFIX + "*" + SUFFIX)) {
+			for (final Path p : stream)
+				packs.add(p);
+		}
+		packs.sort((p1, p2) -> generationOf(p2) - generationOf(p1));
+		Pack pack = null;
+		for (final Path p : packs) {
+			if (pack == null && generationOf(p) > 0) {
+				final Pack candidate = new Pack(p, generationOf(p));
+				if (readIndex(candidate)) {
+					pack = candidate;
+					continue;
+				}
+				candidate.channel.close();
+			}
+			Files.deleteIfExists(p);
+		}
+		isNew = pack == null;
+		if (pack == null)
+			pack = new Pack(folder.resolve(PREFIX + 1 + SUFFIX), 1);
+		this.pack = pack;
+	}
+	
+	/**
+	 * @return Whether this store was created empty because there was no intact store yet
+	 */
+	public boolean isNew() {
+		return isNew;
+	}
+	
+	private static int generationOf(final Path packFile) {
+		final String name = packFile.getFileName().toString();
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (final NumberFormatException | IndexOutOfBoundsException e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * Reads the index of the most recent intact commit of the given pack.
+	 * 
+	 * @return Whether an intact commit was found
+	 */
+	private static boolean readIndex(final Pack pack) throws IOException {
+		final long size = pack.channel.size();
+		if (size < DATA_START)
+			return false;
+		final MappedByteBuffer buffer = pack.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		int newest = -1;
+		long newestSequence = 0;
+		for (int slot = 0; slot < 2; slot++) {
+			final ByteBuffer s = buffer.duplicate().position(slot * SLOT_SIZE);
+			final CRC32 crc = new CRC32();
+			crc.update(s.duplicate().limit(slot * SLOT_SIZE + SLOT_CONTENT_SIZE - 8));
+			if (s.getInt() != MAGIC || s.getInt() != VERSION)
+				continue;
+			final long sequence = s.getLong(), indexOffset = s.getLong();
+			final int indexLength = s.getInt();
+			final long indexCrc = s.getInt() & 0xFFFFFFFFL;
+			if (s.getLong() != crc.getValue() || indexOffset < DATA_START || indexOffset + indexLength > size)
+				continue;
+			final CRC32 ic = new CRC32();
+			ic.update(buffer.duplicate().position((int) indexOffset).limit((int) (indexOffset + indexLength)));
+			if (ic.getValue() != indexCrc || sequence <= newestSequence)
+				continue;
+			newest = slot;
+			newestSequence = sequence;
+		}
+		if (newest < 0)
+			return false;
+		final ByteBuffer s = buffer.duplicate().position(newest * SLOT_SIZE + 8 + 8);
+		final long indexOffset = s.getLong();
+		final int indexLength = s.getInt();
+		final ByteBuffer index = buffer.duplicate().position((int) indexOffset).limit((int) (indexOffset + indexLength));
+		final int numBlobs = index.getInt();
+		final String[] hashes = new String[numBlobs];
+		final Blob[] blobs = new Blob[numBlobs];
+		for (int i = 0; i < numBlobs; i++) {
+			hashes[i] = readString(index);
+			blobs[i] = new Blob(index.getLong(), index.getInt());
+			if (blobs[i].offset < DATA_START || blobs[i].offset + blobs[i].length > indexOffset)
+				return false;
+		}
+		final int numFiles = index.getInt();
+		for (int i = 0; i < numFiles; i++) {
+			final String key = readString(index);
+			final int blob = index.getInt();
+			if (blob < 0 || blob >= numBlobs)
+				return false;
+			pack.index.put(key, new Record(hashes[blob], index.getLong(), index.getLong(), index.getInt(), index.getLong()));
+			blobs[blob].references++;
+		}
+		for (int i = 0; i < numBlobs; i++) {
+			if (blobs[i].references > 0) {
+				pack.blobs.put(hashes[i], blobs[i]);
+				pack.liveBytes += blobs[i].length;
+			}
+		}
+		pack.sequence = newestSequence;
+		pack.nextSlot = 1 - newest;
+		pack.indexLength = indexLength;
+		pack.end = indexOffset + indexLength; // anything after the last commit is garbage from a crash, and will be overwritten
+		pack.mapped = buffer;
+		return true;
+	}
+	
+	private static String readString(final ByteBuffer buffer) {
+		final byte[] data = new byte[buffer.getInt()];
+		buffer.get(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @return The hash that identifies an icon with the given encoded data
+	 */
+	public static String hash(final byte[] data) {
+		final byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e); // every Java platform has SHA-256
+		}
+		final StringBuilder b = new StringBuilder(2 * digest.length);
+		for (final byte d : digest)
+			b.append(Character.forDigit((d >> 4) & 0xF, 16)).append(Character.forDigit(d & 0xF, 16));
+		return b.toString();
+	}
+	
+	private String key(final Path file) {
+		return file.startsWith(mainFolder) ? mainFolder.relativize(file).toString() : file.toAbsolutePath().toString();
+	}
+	
+	/**
+	 * @return The record of the stored icon of the given file, or null if there is none
+	 */
+	public @Nullable Record getRecord(final Path file) {
+		return pack.index.get(key(file));
+	}
+	
+	/**
+	 * @return The stored icon of the given file, or null if there is none
+	 */
+	public byte @Nullable [] get(final Path file) {
+		final Pack pack = this.pack;
+		final Record record = pack.index.get(key(file));
+		final Blob e = record == null ? null : pack.blobs.get(record.hash);
+		if (e == null)
+			return null;
+		MappedByteBuffer mapped = pack.mapped;
+		if (mapped == null || e.offset + e.length > mapped.capacity()) {
+			synchronized (this) {
+				mapped = pack.mapped;
+				if (mapped == null || e.offset + e.length > mapped.capacity()) {
+					try {
+						pack.mapped = mapped = pack.channel.map(FileChannel.MapMode.READ_ONLY, 0, pack.end);
+					} catch (final IOException e1) { // e.g. the pack was replaced and closed by a compaction in the meantime
+						return null;
+					}
+				}
+			}
+		}
+		final byte[] data = new byte[e.length];
+		mapped.duplicate().position((int) e.offset).get(data);
+		reads.increment();
+		return data;
+	}
+	
+	/**
+	 * Stores the icon of the given file, which was just extracted. Identical icons are only stored once. The change is committed a few seconds later.
+	 * 
+	 * @param size Size of the file the icon was extracted from
+	 * @param lastModified Modification time of the file the icon was extracted from
+	 * @param providerVersion Identifies the code that extracted the icon
+	 */
+	public synchronized void put(final Path file, final byte[] data, final long size, final long lastModified, final int providerVersion) throws IOException {
+		final Pack pack = this.pack;
+		final String key = key(file), hash = hash(data);
+		final Record record = new Record(hash, size, lastModified, providerVersion, System.currentTimeMillis());
+		final Record old = pack.index.get(key);
+		if (old != null && old.hash.equals(hash)) { // same icon, only the record changed
+			pack.index.put(key, record);
+			pack.dirty = true;
+			committer.trigger();
+			return;
+		}
+		Blob blob = pack.blobs.get(hash);
+		if (blob == null) {
+			write(pack, ByteBuffer.wrap(data));
+			blob = new Blob(pack.end, data.length);
+			pack.end += data.length;
+			pack.liveBytes += data.length;
+			pack.blobs.put(hash, blob);
+			writes.increment();
+		}
+		blob.references++; // before the index change, so that readers always find the blob of an indexed file
+		if (old != null)
+			release(pack, old.hash);
+		pack.index.put(key, record);
+		pack.dirty = true;
+		committer.trigger();
+	}
+	
+	private static void release(final Pack pack, final String hash) {
+		final Blob blob = pack.blobs.get(hash);
+		if (blob != null && --blob.references <= 0) {
+			pack.blobs.remove(hash);
+			pack.liveBytes -= blob.length;
+		}
+	}
+	
+	private static void write(final Pack pack, final ByteBuffer data) throws IOException {
+		long position = pack.end;
+		while (data.hasRemaining())
+			position += pack.channel.write(data, position);
+	}
+	
+	/**
+	 * Removes the icons of all files matching the given predicate
+	 */
+	public synchronized void removeIf(final Predicate<Path> filter) {
+		final Pack pack = this.pack;
+		for (final Map.Entry<String, Record> e : pack.index.entrySet()) {
+			if (filter.test(mainFolder.resolve(e.getKey())) && pack.index.remove(e.getKey(), e.getValue())) {
+				release(pack, e.getValue().hash);
+				pack.dirty = true;
+			}
+		}
+		if (pack.dirty)
+			committer.trigger();
+	}
+	
+	/**
+	 * Writes a new index and points the header to it, unless nothing changed since the last commit.
+	 */
+	public synchronized void commit() throws IOException {
+		commit(pack);
+	}
+	
+	private static void commit(final Pack pack) throws IOException {
+		if (!pack.dirty)
+			return;
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(data)) {
+			final Map<String, Integer> blobNumbers = new HashMap<>();
+			out.writeInt(pack.blobs.size());
+			for (final Map.Entry<String, Blob> e : pack.blobs.entrySet()) {
+				blobNumbers.put(e.getKey(), blobNumbers.size());
+				writeString(out, e.getKey());
+				out.writeLong(e.getValue().offset);
+				out.writeInt(e.getValue().length);
+			}
+			out.writeInt(pack.index.size());
+			for (final Map.Entry<String, Record> e : pack.index.entrySet()) {
+				final Record r = e.getValue();
+				writeString(out, e.getKey());
+				out.writeInt(blobNumbers.get(r.hash));
+				out.writeLong(r.size);
+				out.writeLong(r.lastModified);
+				out.writeInt(r.providerVersion);
+				out.writeLong(r.checked);
+			}
+		}
+		final byte[] index = data.toByteArray();
+		final long indexOffset = pack.end;
+		write(pack, ByteBuffer.wrap(index));
+		pack.end += index.length;
+		pack.channel.force(false); // the index and all icons it points to must be on disk before the header points to it
+		
+		final CRC32 indexCrc = new CRC32();
+		indexCrc.update(index);
+		final ByteBuffer slot = ByteBuffer.allocate(SLOT_CONTENT_SIZE);
+		slot.putInt(MAGIC).putInt(VERSION).putLong(pack.sequence + 1).putLong(indexOffset).putInt(index.length).putInt((int) indexCrc.getValue());
+		final CRC32 slotCrc = new CRC32();
+		slotCrc.update(slot.duplicate().flip());
+		slot.putLong(slotCrc.getValue());
+		slot.flip();
+		long position = pack.nextSlot * SLOT_SIZE;
+		while (slot.hasRemaining())
+			position += pack.channel.write(slot, position);
+		pack.channel.force(false);
+		
+		pack.sequence++;
+		pack.nextSlot = 1 - pack.nextSlot;
+		pack.indexLength = index.length;
+		pack.dirty = false;
+	}
+	
+	private static void writeString(final DataOutputStream out, final String s) throws IOException {
+		final byte[] data = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+	
+	private void commitQuietly() {
+		try {
+			commit();
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return How many bytes in the file are not used by live icons or the current index
+	 */
+	public synchronized long getGarbage() {
+		final Pack pack = this.pack;
+		return pack.end - DATA_START - pack.liveBytes - pack.indexLength;
+	}
+	
+	/**
+	 * Copies all live icons into a new file if at least half of the current file is garbage, and deletes the old file.
+	 */
+	public synchronized void compactIfWorthwhile() throws IOException {
+		final Pack old = pack;
+		final long garbage = getGarbage();
+		if (garbage < MIN_COMPACTION_GARBAGE || garbage < old.liveBytes)
+			return;
+		final long start = System.nanoTime();
+		final Path newFile = folder.resolve(PREFIX + (old.generation + 1) + SUFFIX);
+		Files.deleteIfExists(newFile);
+		final Pack compacted = new Pack(newFile, old.generation + 1);
+		try {
+			for (final Map.Entry<String, Blob> e : old.blobs.entrySet()) {
+				final Blob blob = e.getValue();
+				final ByteBuffer data = ByteBuffer.allocate(blob.length);
+				long position = blob.offset;
+				while (data.hasRemaining() && position < old.end)
+					position += old.channel.read(data, position);
+				data.flip();
+				write(compacted, data);
+				final Blob copy = new Blob(compacted.end, blob.length);
+				copy.references = blob.references;
+				compacted.blobs.put(e.getKey(), copy);
+				compacted.liveBytes += blob.length;
+				compacted.end += blob.length;
+			}
+			compacted.index.putAll(old.index);
+			compacted.dirty = true;
+			commit(compacted);
+		} catch (final IOException e) {
+			compacted.channel.close();
+			Files.deleteIfExists(newFile);
+			throw e;
+		}
+		pack = compacted;
+		old.channel.close();
+		try {
+			Files.deleteIfExists(old.file);
+		} catch (final IOException e) {
+			// still mapped (on Windows, until the mapping is garbage collected). deleted the next time the store is opened.
+		}
+		System.out.println("Compacted " + old.file.getFileName() + " into " + newFile.getFileName() + " (" + garbage / 1024 + " KiB garbage) in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+	
+	/**
+	 * Reads the whole file into memory in one go, so that icons read afterwards don't have to wait for the disk
+	 */
+	public void preload() {
+		final Pack pack = this.pack;
+		final MappedByteBuffer mapped = pack.mapped;
+		if (mapped != null)
+			mapped.load();
+	}
+	
+	public int size() {
+		return pack.index.size();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		committer.cancel();
+		commit();
+		pack.channel.close();
+	}
+	
+	@Override
+	public synchronized String toString() {
+		final Pack pack = this.pack;
+		return "IconStore[" + pack.file + ": " + pack.index.size() + " files, " + pack.blobs.size() + " distinct icons, " + pack.liveBytes / 1024 + " KiB, " + getGarbage() / 1024 + " KiB garbage, " + reads.sum() + " reads, " + writes.sum() + " writes]";
+	}
+	
+}
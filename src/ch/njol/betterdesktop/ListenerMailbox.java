@@ -0,0 +1,281 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent.Kind;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import ch.njol.betterdesktop.FileWatcher.FileListener;
+
+/**
+ * A bounded queue of events for a single listener, which is drained on an executor so that slow listeners don't hold up the file watcher.
+ * <p>
+ * Events are delivered to the listener in order and never concurrently. A mailbox can also be demand-driven,
+ * in which case it only delivers as many events as have been {@link #request(long) requested}.
+ */
+public class ListenerMailbox {
+	
+	/**
+	 * What to do if an event arrives while the mailbox is full
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Merge the new event into a queued event for the same path, or drop the oldest event if there is none
+		 */
+		COALESCE,
+		/**
+		 * Drop the oldest event
+		 */
+		DROP_OLDEST,
+		/**
+		 * Drop all queued events and tell the listener to rescan everything with {@link FileListener#eventsLost(Path)}
+		 */
+		RESCAN
+	}
+	
+	private final static class Event {
+		private final Path path;
+		private Kind<Path> kind;
+		private final long time;
+		
+		public Event(final Path path, final Kind<Path> kind, final long time) {
+			this.path = path;
+			this.kind = kind;
+			this.time = time;
+		}
+	}
+	
+	// maximum number of events delivered in one go, so that a busy listener doesn't block an executor thread forever
+	private final static int BATCH_SIZE = 64;
+	
+	public final FileListener listener;
+	private final Path startPath;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final Executor executor;
+	
+	// all guarded by 'queue'
+	private final ArrayDeque<Event> queue = new ArrayDeque<>();
+	private final HashMap<Path, Event> lastEvents = new HashMap<>(); // only used by COALESCE
+	private boolean overflowed, scheduled, closing, closed;
+	private long demand;
+	
+	private final AtomicLong delivered = new AtomicLong(), dropped = new AtomicLong(), coalesced = new AtomicLong(), overflows = new AtomicLong(),
+			totalLagNanos = new AtomicLong(), maxLagNanos = new AtomicLong();
+	
+	public ListenerMailbox(final FileListener listener, final Path startPath, final int capacity, final OverflowPolicy policy, final Executor executor) {
+		this(listener, startPath, capacity, policy, executor, false);
+	}
+	
+	/**
+	 * @param demandDriven Whether events are only delivered after they have been {@link #request(long) requested}
+	 */
+	public ListenerMailbox(final FileListener listener, final Path startPath, final int capacity, final OverflowPolicy policy, final Executor executor, final boolean demandDriven) {
+		this.listener = listener;
+		this.startPath = startPath;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.executor = executor;
+		demand = demandDriven ? 0 : Long.MAX_VALUE;
+	}
+	
+	public void post(final Path path, final Kind<Path> kind) {
+		synchronized (queue) {
+			if (closed || closing)
+				return;
+			if (overflowed) { // everything will be rescanned anyway
+				dropped.incrementAndGet();
+				return;
+			}
+			if (queue.size() >= capacity) {
+				if (policy == OverflowPolicy.RESCAN) {
+					dropped.addAndGet(queue.size() + 1);
+					overflows.incrementAndGet();
+					queue.clear();
+					overflowed = true;
+					schedule();
+					return;
+				}
+				if (policy == OverflowPolicy.COALESCE) {
+					final Event e = lastEvents.get(path);
+					if (e != null) {
+						e.kind = kind;
+						coalesced.incrementAndGet();
+						return;
+					}
+				}
+				final Event oldest = queue.poll();
+				if (oldest != null)
+					lastEvents.remove(oldest.path, oldest);
+				dropped.incrementAndGet();
+			}
+			final Event e = new Event(path, kind, System.nanoTime());
+			queue.add(e);
+			if (policy == OverflowPolicy.COALESCE)
+				lastEvents.put(path, e);
+			schedule();
+		}
+	}
+	
+	// must be called while holding the lock
+	private void schedule() {
+		if (!scheduled) {
+			scheduled = true;
+			executor.execute(this::drain);
+		}
+	}
+	
+	private void drain() {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			final @Nullable Event e;
+			final boolean rescan, complete;
+			synchronized (queue) {
+				if (closed)
+					return;
+				complete = closing;
+				if (complete) {
+					closing = false;
+					closed = true;
+					scheduled = false;
+				} else if (demand == 0 || !overflowed && queue.isEmpty()) {
+					scheduled = false;
+					return;
+				} else if (demand != Long.MAX_VALUE) {
+					demand--;
+				}
+				rescan = overflowed;
+				overflowed = false;
+				e = rescan || complete ? null : queue.poll();
+				if (e != null)
+					lastEvents.remove(e.path, e);
+			}
+			if (complete) {
+				try {
+					listener.watcherClosed();
+				} catch (final Throwable t) {
+					t.printStackTrace();
+				}
+				return;
+			}
+			try {
+				if (e != null) {
+					final long lag = System.nanoTime() - e.time;
+					totalLagNanos.addAndGet(lag);
+					maxLagNanos.accumulateAndGet(lag, Math::max);
+					delivered.incrementAndGet();
+					listener.fileChanged(e.path, e.kind);
+				} else {
+					listener.eventsLost(startPath);
+				}
+			} catch (final Throwable t) {
+				t.printStackTrace();
+			}
+		}
+		synchronized (queue) {
+			scheduled = false;
+			if (closing || demand != 0 && (!queue.isEmpty() || overflowed))
+				schedule();
+		}
+	}
+	
+	/**
+	 * Allows a demand-driven mailbox to deliver the given number of additional events. Does nothing for mailboxes that aren't demand-driven.
+	 */
+	public void request(final long n) {
+		synchronized (queue) {
+			if (demand == Long.MAX_VALUE)
+				return;
+			demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			schedule();
+		}
+	}
+	
+	/**
+	 * Drops all queued events and stops delivering events to the listener.
+	 * 
+	 * @param notify Whether to tell the listener with {@link FileListener#watcherClosed()}
+	 */
+	public void close(final boolean notify) {
+		synchronized (queue) {
+			queue.clear();
+			lastEvents.clear();
+			overflowed = false;
+			if (notify && !closed) {
+				closing = true;
+				schedule();
+			} else {
+				closed = true;
+			}
+		}
+	}
+	
+	// metrics
+	
+	public int getQueuedEvents() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+	
+	public long getDeliveredEvents() {
+		return delivered.get();
+	}
+	
+	public long getDroppedEvents() {
+		return dropped.get();
+	}
+	
+	public long getCoalescedEvents() {
+		return coalesced.get();
+	}
+	
+	/**
+	 * @return How often the mailbox overflowed and the listener had to rescan
+	 */
+	public long getOverflows() {
+		return overflows.get();
+	}
+	
+	/**
+	 * @return The average time between an event being posted and it being delivered to the listener
+	 */
+	public double getAverageLagMS() {
+		final long n = delivered.get();
+		return n == 0 ? 0 : 1.0 * totalLagNanos.get() / n / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+	
+	public double getMaxLagMS() {
+		return 1.0 * maxLagNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+	
+	@Override
+	public String toString() {
+		return "ListenerMailbox[" + startPath + ": queued=" + getQueuedEvents() + ", delivered=" + getDeliveredEvents() + ", dropped=" + getDroppedEvents()
+				+ ", coalesced=" + getCoalescedEvents() + ", overflows=" + getOverflows()
+				+ ", lag avg/max=" + String.format("%.1f/%.1f", getAverageLagMS(), getMaxLagMS()) + "ms]";
+	}
+	
+}
@@ -34,13 +34,18 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -58,7 +63,6 @@ import javax.swing.ToolTipManager;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
-import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
 
 import com.sun.jna.Native;
@@ -73,10 +77,23 @@ public class Main {
 	
 	public final static String NAME = "Mǫtunautr";
 	
-	private final static ConcurrentLinkedDeque<BDWindow> windows = new ConcurrentLinkedDeque<>();
+	/**
+	 * All windows by the canonical path of their group folder. Sorted the same way as directory listings to be able to merge the two.
+	 */
+	private final static ConcurrentSkipListMap<Path, BDWindow> windows = new ConcurrentSkipListMap<>();
 	
 	private static volatile @Nullable FileWatcher fileWatcher = null;
 	
+	private static volatile @Nullable IconStore iconStore = null;
+	
+	private final static long startTime = System.nanoTime();
+	private static boolean firstWindowShown = false; // only accessed from the EDT
+	
+	/**
+	 * The snapshot loaded at startup, or null if there was none or the main folder changed since
+	 */
+	private static volatile @Nullable DesktopSnapshot loadedSnapshot = null;
+	
 	public final static ThreadPoolExecutor threadPool = new ThreadPoolExecutor(16, 16, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
 	static {
 		threadPool.allowCoreThreadTimeOut(true);
@@ -86,7 +103,7 @@ public class Main {
 	public static Image icon;
 	
 	public static void allToFront() {
-		for (final BDWindow w : windows) {
+		for (final BDWindow w : windows.values()) {
 			w.toFront();
 			w.setAlwaysOnTop(true); // this works, the above line does not...
 			w.setAlwaysOnTop(false);
@@ -128,6 +145,15 @@ public class Main {
 			JOptionPane.showMessageDialog(null, "Could not load settings: " + e2.getMessage() + ".\nThe default values will be used, including the default directory 'Desktop' in your documents folder.", NAME + ": Error", JOptionPane.ERROR_MESSAGE);
 		}
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			saveSnapshot();
+			final IconStore iconStore = Main.iconStore;
+			if (iconStore != null) {
+				try {
+					iconStore.close();
+				} catch (final IOException e1) {
+					e1.printStackTrace();
+				}
+			}
 			try {
 				Settings.save();
 				Settings.releaseLock();
@@ -186,38 +212,61 @@ public class Main {
 		
 		boolean mainFolderExisted = false;
 		if (isFirstRun) {
-			final File mainFolder = new File(Settings.INSTANCE.directory.get());
-			if (mainFolder.isDirectory())
+			final Path mainFolder = getMainFolder();
+			if (Files.isDirectory(mainFolder))
 				mainFolderExisted = true;
-			mainFolder.mkdirs();
+			try {
+				Files.createDirectories(mainFolder);
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
 		}
 		Settings.INSTANCE.directory.addListener(s -> {
-			final Path newFolder = Paths.get(s);
+			final Path newFolder = fileSystem.getPath(s);
 			final FileWatcher oldWatcher = fileWatcher;
-			if ((oldWatcher == null || !newFolder.equals(oldWatcher.watchedDirectory)) && newFolder.toFile().isDirectory()) {
+			if ((oldWatcher == null || !newFolder.equals(oldWatcher.watchedDirectory)) && Files.isDirectory(newFolder)) {
 				if (oldWatcher != null)
 					oldWatcher.close();
+				final IconStore oldStore = iconStore;
+				iconStore = null;
+				if (oldStore != null) {
+					try {
+						oldStore.close();
+					} catch (final IOException e1) {
+						e1.printStackTrace();
+					}
+				}
 				try {
-					final Path directory = Paths.get(s);
-					final FileWatcher newFileWatcher = new FileWatcher(directory);
+					final IconStore newStore = new IconStore(newFolder);
+					iconStore = newStore;
+					threadPool.execute(newStore::preload);
+				} catch (final IOException e1) {
+					e1.printStackTrace();
+				}
+				try {
+					final Path directory = newFolder;
+					final DesktopSnapshot snapshot = oldWatcher == null ? DesktopSnapshot.load(directory) : null;
+					loadedSnapshot = snapshot;
+					final FileWatcher newFileWatcher = new FileWatcher(directory, watchFilter, snapshot);
 					fileWatcher = newFileWatcher;
 					newFileWatcher.addListener(directory, new FileWatcher.DirectoryListener(500) {
 						@Override
 						public boolean ignoreChange(final Path path) {
-							return !path.getParent().equals(directory) || path.toFile().exists() && !path.toFile().isDirectory();
+							return !path.getParent().equals(newFileWatcher.watchedDirectory); // files are filtered out later
 						}
 						
 						@Override
-						public void directoryChanged() {
+						public void directoryChanged(final ChangeSet changes) {
 							SwingUtilities.invokeLater(() -> {
-								createOrUpdateWindows();
+								updateWindows(changes);
 							});
+							snapshotChanged();
 						}
 					});
 				} catch (final IOException e1) {
 					e1.printStackTrace();
 				}
-				for (final BDWindow w : windows) {
+				for (final BDWindow w : windows.values()) {
 					w.dispose();
 				}
 				windows.clear();
@@ -230,17 +279,17 @@ public class Main {
 		if (isFirstRun) {
 			final boolean mainFolderExisted2 = mainFolderExisted;
 			SwingUtilities.invokeLater(() -> {
-				final File mainFolder = new File(Settings.INSTANCE.directory.get());
+				final Path mainFolder = getMainFolder();
 				if (mainFolderExisted2) { // maybe the settings were lost or reset?
 					JOptionPane.showMessageDialog(null, "Looks like Motunautr's settings were deleted or moved (or maybe you moved to a new computer?).\n"
 							+ "The settings window will now open, allowing you to set the options anew.", NAME + ": First Run", JOptionPane.INFORMATION_MESSAGE);
 					Settings.showSettingsWindow();
 				} else {
 					final File windowsDesktopFolder = new File(System.getProperty("user.home") + "/Desktop/");
-					new File(mainFolder, "Example Group").mkdir();
 					try {
+						Files.createDirectories(mainFolder.resolve("Example Group"));
 						Desktop.getDesktop().open(windowsDesktopFolder);
-						Desktop.getDesktop().open(mainFolder);
+						Desktop.getDesktop().open(mainFolder.toFile());
 					} catch (final IOException e1) {
 						e1.printStackTrace();
 					}
@@ -266,96 +315,271 @@ public class Main {
 		try {
 			Thread.sleep(10000);
 		} catch (final InterruptedException e) {}
-		for (final BDWindow w : windows) {
+		final IconStore iconStore = Main.iconStore;
+		if (iconStore != null) {
+			// the index already holds the listings of the groups and their folders, so this mostly doesn't touch the file system
+			final DirectoryIndex index = getDirectoryIndex();
+			iconStore.removeIf(file -> index.get(file) == null);
 			try {
-				Files.walkFileTree(w.metaFolder.toPath(), new FileVisitor<Path>() {
-					@Override
-					public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
-						return FileVisitResult.CONTINUE;
-					}
-					
-					@Override
-					public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
-						if (file.getFileName().toString().endsWith(".png")) {
-							final Path actualFile = FileIcon.fileFromIconCacheFile(w, file);
-							if (actualFile == null || !actualFile.toFile().exists()) {
-								System.out.println("Deleting cached icon for " + actualFile);
-								file.toFile().delete();
-							}
-						}
-						return FileVisitResult.CONTINUE;
-					}
-					
-					@Override
-					public FileVisitResult visitFileFailed(final Path file, final IOException exc) throws IOException {
-						return FileVisitResult.CONTINUE;
-					}
-					
-					@Override
-					public FileVisitResult postVisitDirectory(final Path dir, final @Nullable IOException exc) throws IOException {
-						final File f = dir.toFile();
-						if (f.list().length == 0) {
-							System.out.println("Deleting empty directory " + f);
-							f.delete();
-						}
-						return FileVisitResult.CONTINUE;
+				iconStore.compactIfWorthwhile();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			// icons used to be cached as one file per icon in each group's metadata folder. these are only deleted once, when the store replacing them is created.
+			if (iconStore.isNew()) {
+				for (final BDWindow w : windows.values()) {
+					try {
+						Utils.deleteRecursively(w.metaFolder.resolve("iconcache"));
+					} catch (final IOException e) {
+						// ignore
 					}
-				});
-			} catch (final IOException e1) {
-				// ignore
+				}
 			}
 		}
+		System.out.println(getDirectoryIndex());
+		System.out.println(getDirectoryIndex().runTargets);
+		System.out.println(DesktopModel.current());
+		System.out.println(IconCache.INSTANCE);
+		System.out.println(iconStore);
+		System.out.println("Icons extracted: " + FileIcon.getExtractions());
+		System.out.println(IconLoader.INSTANCE);
 		
 	}
 	
+	/**
+	 * How deep changes are watched by default: the groups (1), the files in the groups (2), and the contents of folders in groups (3), which determine their icons and dropdowns.
+	 * Groups can override this in their settings.
+	 */
+	public final static int DEFAULT_WATCH_DEPTH = 3;
+	
+	/**
+	 * Filters out changes that no window displays, in particular any changes to our own metadata in the groups' '.motunautr' folders, and anything nested deeper than a window can show.
+	 */
+	private final static WatchFilter watchFilter = new WatchFilter.Builder()
+			.excludeDotNames()
+			.excludeName("desktop.ini").excludeName("Thumbs.db")
+			.maxDepth(DEFAULT_WATCH_DEPTH)
+			.build();
+	
 	public static void watchDirectory(final Path relativePath, final FileWatcher.FileListener listener) {
 		final FileWatcher fileWatcher = Main.fileWatcher;
 		if (fileWatcher != null)
 			fileWatcher.addListener(relativePath, listener);
 	}
 	
+	/**
+	 * Sets how deep changes inside the given group folder are watched, with the group's files having a depth of 1.
+	 */
+	public static void setWatchDepth(final Path groupFolder, final int maxDepth) {
+		final FileWatcher fileWatcher = Main.fileWatcher;
+		if (fileWatcher != null)
+			fileWatcher.setMaxDepth(groupFolder, maxDepth);
+	}
+	
+	/**
+	 * Removes the watch depth set for the given group folder, e.g. because the group was deleted or renamed
+	 */
+	public static void clearWatchDepth(final Path groupFolder) {
+		final FileWatcher fileWatcher = Main.fileWatcher;
+		if (fileWatcher != null)
+			fileWatcher.clearMaxDepth(groupFolder);
+	}
+	
+	// desktop snapshot
+	
+	private final static Debouncer.Task snapshotSaver = Debouncer.SHARED.create(10000, 60000, () -> threadPool.execute(Main::saveSnapshot));
+	
+	/**
+	 * Saves the desktop snapshot once things have calmed down a bit
+	 */
+	public static void snapshotChanged() {
+		snapshotSaver.trigger();
+	}
+	
+	private static void saveSnapshot() {
+		final FileWatcher fileWatcher = Main.fileWatcher;
+		if (fileWatcher == null)
+			return;
+		final Map<String, DesktopSnapshot.WindowState> windowStates = new HashMap<>();
+		for (final BDWindow w : windows.values())
+			windowStates.put(w.folder.getFileName().toString(), w.getWindowState());
+		try {
+			new DesktopSnapshot(fileWatcher.watchedDirectory, fileWatcher.index.cachedListings(), fileWatcher.index.runTargets.cachedTargets(), windowStates).save();
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return The state of the window of the given group folder as saved in the snapshot loaded at startup, or null if unknown
+	 */
+	public static DesktopSnapshot.@Nullable WindowState getSavedWindowState(final Path groupFolder) {
+		final DesktopSnapshot snapshot = loadedSnapshot;
+		return snapshot == null ? null : snapshot.windows.get(groupFolder.getFileName().toString());
+	}
+	
+	public static void unwatchDirectory(final Path relativePath, final FileWatcher.FileListener listener) {
+		final FileWatcher fileWatcher = Main.fileWatcher;
+		if (fileWatcher != null)
+			fileWatcher.removeListener(relativePath, listener);
+	}
+	
+	/**
+	 * @return The store of the icons of all files in the main folder, or null if it could not be opened
+	 */
+	public static @Nullable IconStore getIconStore() {
+		return iconStore;
+	}
+	
+	/**
+	 * @return The index of the main folder kept up to date by the file watcher, or an index that doesn't cache anything if there's no file watcher
+	 */
+	public static DirectoryIndex getDirectoryIndex() {
+		final FileWatcher fileWatcher = Main.fileWatcher;
+		return fileWatcher != null ? fileWatcher.index : DirectoryIndex.UNCACHED;
+	}
+	
+	private static volatile FileSystem fileSystem = FileSystems.getDefault();
+	
+	/**
+	 * Sets the file system the main folder is on. Everything else is resolved against the main folder, so this is all that's needed to run Motunautr on a different
+	 * file system, e.g. an in-memory one for benchmarks. Must be called before the main folder is set.
+	 */
+	public static void setFileSystem(final FileSystem fileSystem) {
+		Main.fileSystem = fileSystem;
+	}
+	
+	/**
+	 * @return The main folder as set in the settings
+	 */
+	public static Path getMainFolder() {
+		return fileSystem.getPath(Settings.INSTANCE.directory.get());
+	}
+	
+	private static Path windowKey(final Path groupFolder) {
+		return getDirectoryIndex().toIndexPath(groupFolder);
+	}
+	
+	/**
+	 * Adds and removes windows to match the groups in the main folder, in a single pass over both (sorted) lists
+	 */
 	private static void createOrUpdateWindows() {
-		final File mainFolder = new File(Settings.INSTANCE.directory.get());
-		final @NonNull File[] contents = mainFolder.listFiles();
+		final Path mainFolder = getMainFolder();
+		final List<DirectoryIndex.Entry> contents = getDirectoryIndex().list(mainFolder);
 		if (contents != null) {
-			// remove old windows
-			outer: for (final BDWindow w : windows) {
-				for (final File f : contents) {
-					if (w.folder.equals(f))
-						continue outer;
+			final List<Path> newGroups = new ArrayList<>();
+			final Iterator<Map.Entry<Path, BDWindow>> windowIter = windows.entrySet().iterator();
+			final Iterator<DirectoryIndex.Entry> contentsIter = contents.iterator();
+			Map.Entry<Path, BDWindow> window = windowIter.hasNext() ? windowIter.next() : null;
+			DirectoryIndex.Entry entry = contentsIter.hasNext() ? contentsIter.next() : null;
+			while (window != null || entry != null) {
+				final int c = window == null ? 1 : entry == null ? -1 : window.getKey().compareTo(entry.path);
+				if (c < 0 || c == 0 && !isGroupFolder(entry)) {
+					// window without a group
+					System.out.println("Removing old window for " + window.getValue().folder);
+					window.getValue().dispose();
+					windows.remove(window.getKey(), window.getValue());
+				} else if (c > 0 && isGroupFolder(entry)) {
+					// group without a window
+					newGroups.add(mainFolder.resolve(entry.name));
 				}
-				System.out.println("Removing old window for " + w.folder);
-				w.dispose();
-				windows.remove(w);
-			}
-			
-			// add new windows
-			outer: for (final File f : contents) {
-				if (f.isHidden() || f.getName().startsWith(".") || !f.isDirectory())
-					continue;
-				for (final BDWindow w : windows) {
-					if (w.folder.equals(f))
-						continue outer;
-				}
-				System.out.println("Adding new window for " + f);
-				createWindow(f);
+				if (c <= 0)
+					window = windowIter.hasNext() ? windowIter.next() : null;
+				if (c >= 0)
+					entry = contentsIter.hasNext() ? contentsIter.next() : null;
 			}
+			createWindows(newGroups);
 		} else {
-			for (final BDWindow w : windows) {
+			for (final BDWindow w : windows.values()) {
 				w.dispose();
 			}
 			windows.clear();
 		}
 	}
 	
-	private static void createWindow(final File f) {
+	private static boolean isGroupFolder(final DirectoryIndex.@Nullable Entry e) {
+		return e != null && !e.hidden && !e.name.startsWith(".") && e.directory;
+	}
+	
+	/**
+	 * Adds, removes, or moves only the windows of folders in the given change set
+	 */
+	private static void updateWindows(final ChangeSet changes) {
+		if (changes.incomplete) {
+			createOrUpdateWindows();
+			return;
+		}
+		final Path mainFolder = getMainFolder();
+		final List<BDWindow> oldWindows = new ArrayList<>();
+		final List<Path> newGroups = new ArrayList<>();
+		for (final Path p : changes.all()) {
+			final Path f = mainFolder.resolve(p.getFileName().toString()); // same form as the folders of existing windows
+			final BDWindow window = windows.get(windowKey(f));
+			final boolean isGroup = isGroupFolder(getDirectoryIndex().get(f));
+			if (window != null && !isGroup)
+				oldWindows.add(window);
+			else if (window == null && isGroup)
+				newGroups.add(f);
+		}
+		// a renamed group is reported as deleted and created. move its window instead of creating a new one.
+		for (final Iterator<Path> iter = newGroups.iterator(); iter.hasNext();) {
+			final Path f = iter.next();
+			for (final BDWindow w : oldWindows) {
+				if (w.hasSettingsOf(f)) {
+					System.out.println("Moving window for " + w.folder + " to " + f);
+					windows.remove(windowKey(w.folder), w);
+					w.moveTo(f);
+					windows.put(windowKey(f), w);
+					oldWindows.remove(w);
+					iter.remove();
+					break;
+				}
+			}
+		}
+		for (final BDWindow w : oldWindows) {
+			System.out.println("Removing old window for " + w.folder);
+			w.dispose();
+			windows.remove(windowKey(w.folder), w);
+		}
+		createWindows(newGroups);
+	}
+	
+	/**
+	 * Groups that are being read to create their windows
+	 */
+	private final static Set<Path> pendingWindows = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Reads the given groups in parallel, and creates a window for each group as soon as it has been read.
+	 */
+	private static void createWindows(final List<Path> groups) {
+		final List<Path> newGroups = new ArrayList<>();
+		for (final Path f : groups) {
+			if (pendingWindows.add(windowKey(f)))
+				newGroups.add(f);
+		}
+		FolderScanner.scanGroups(getDirectoryIndex(), newGroups, Main::createWindow);
+	}
+	
+	private static void createWindow(final Path f) {
 		SwingUtilities.invokeLater(() -> {
-			if (!f.isDirectory()) // if the file was changed or deleted before this could execute, exit
+			final Path key = windowKey(f);
+			pendingWindows.remove(key);
+			if (!f.getParent().equals(getMainFolder())) // the main folder was changed in the meantime
+				return;
+			if (!isGroupFolder(getDirectoryIndex().get(f))) // if the file was changed or deleted before this could execute, exit
 				return;
+			if (windows.containsKey(key))
+				return;
+			System.out.println("Adding new window for " + f);
 			final BDWindow w = new BDWindow(f);
-			windows.add(w);
+			windows.put(key, w);
 			w.pack();
 			w.setVisible(true);
+			if (!firstWindowShown) {
+				firstWindowShown = true;
+				System.out.println("First window shown " + (System.nanoTime() - startTime) / 1000000 + " ms after start" + (loadedSnapshot != null ? " (from snapshot)" : ""));
+			}
 			
 			threadPool.execute(() -> {
 				// sets whether the windows blur the background behind them
@@ -0,0 +1,51 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+
+/**
+ * A single change to a file, as published by a {@link PathEventPublisher}.
+ */
+public final class PathEvent {
+	
+	public final Path path;
+	
+	/**
+	 * One of the {@link StandardWatchEventKinds}. {@link StandardWatchEventKinds#OVERFLOW OVERFLOW} means that events were lost somewhere inside {@link #path}.
+	 */
+	public final Kind<?> kind;
+	
+	public PathEvent(final Path path, final Kind<?> kind) {
+		this.path = path;
+		this.kind = kind;
+	}
+	
+	public boolean isOverflow() {
+		return kind == StandardWatchEventKinds.OVERFLOW;
+	}
+	
+	@Override
+	public String toString() {
+		return kind.name() + " " + path;
+	}
+	
+}
@@ -0,0 +1,414 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Publishes the changes inside a directory watched by a {@link FileWatcher} as a reactive stream.
+ * <p>
+ * Every subscriber gets its own listener and mailbox on the file watcher. Events are only delivered as they are requested,
+ * and events that arrive while a subscriber's mailbox is full are replaced by a single {@link PathEvent#isOverflow() overflow} event.
+ * When the file watcher is closed, all subscribers are completed.
+ */
+public class PathEventPublisher implements Flow.Publisher<PathEvent> {
+	
+	private final FileWatcher watcher;
+	private final Path startPath;
+	private final int bufferSize;
+	
+	PathEventPublisher(final FileWatcher watcher, final Path startPath, final int bufferSize) {
+		this.watcher = watcher;
+		this.startPath = startPath;
+		this.bufferSize = bufferSize;
+	}
+	
+	@Override
+	public void subscribe(final Subscriber<? super PathEvent> subscriber) {
+		final Source source = new Source(subscriber);
+		source.mailbox = watcher.addListener(startPath, source, bufferSize, ListenerMailbox.OverflowPolicy.RESCAN, true);
+		subscriber.onSubscribe(source);
+	}
+	
+	private final class Source implements Subscription, FileWatcher.FileListener {
+		private final Subscriber<? super PathEvent> subscriber;
+		private volatile @Nullable ListenerMailbox mailbox;
+		private volatile boolean cancelled;
+		
+		public Source(final Subscriber<? super PathEvent> subscriber) {
+			this.subscriber = subscriber;
+		}
+		
+		@Override
+		public void fileChanged(final Path path, final Kind<Path> kind) {
+			subscriber.onNext(new PathEvent(path, kind));
+		}
+		
+		@Override
+		public void eventsLost(final Path startPath) {
+			subscriber.onNext(new PathEvent(startPath, StandardWatchEventKinds.OVERFLOW));
+		}
+		
+		@Override
+		public void watcherClosed() {
+			if (!cancelled)
+				subscriber.onComplete();
+		}
+		
+		@Override
+		public void request(final long n) {
+			if (n <= 0) {
+				cancel();
+				subscriber.onError(new IllegalArgumentException("Requested a non-positive number of events: " + n));
+				return;
+			}
+			final ListenerMailbox mailbox = this.mailbox;
+			if (mailbox != null)
+				mailbox.request(n);
+		}
+		
+		@Override
+		public void cancel() {
+			if (cancelled)
+				return;
+			cancelled = true;
+			watcher.removeListener(startPath, this);
+		}
+	}
+	
+	// operators
+	
+	/**
+	 * @return A publisher of only the changes to the given path and anything inside it. This is as cheap as subscribing to the path directly.
+	 */
+	public PathEventPublisher filter(final Path prefix) {
+		final Path path = FileWatcher.toCanonicalPath(prefix);
+		if (path.startsWith(startPath))
+			return new PathEventPublisher(watcher, path, bufferSize);
+		if (startPath.startsWith(path))
+			return this;
+		throw new IllegalArgumentException(prefix + " is not inside " + startPath);
+	}
+	
+	/**
+	 * @return A publisher of changes consolidated into change sets, in the same way a {@link FileWatcher.DirectoryListener} consolidates them.
+	 *         While a subscriber doesn't request any more change sets, further changes are merged into the pending change set.
+	 */
+	public Flow.Publisher<ChangeSet> debounce(final long delayMS, final long maxWaitMS) {
+		return subscriber -> subscribe(new Debouncing(subscriber, delayMS, maxWaitMS));
+	}
+	
+	/**
+	 * @return A publisher of lists of events, each containing at most <tt>maxSize</tt> events that happened within at most <tt>maxDelayMS</tt>.
+	 *         While a subscriber doesn't request any more batches, no more events are requested from this publisher.
+	 */
+	public Flow.Publisher<List<PathEvent>> batch(final int maxSize, final long maxDelayMS) {
+		return subscriber -> subscribe(new Batching(subscriber, maxSize, maxDelayMS));
+	}
+	
+	/**
+	 * Base of the operators. Operators only update their state on the threads that call them (in particular on the {@link Debouncer#SHARED debouncer's} thread),
+	 * and deliver to their subscriber on the {@link Main#threadPool thread pool}, one signal at a time and in order. A slow subscriber thus only delays itself.
+	 * <p>
+	 * When the upstream completes, the subscriber is only completed once it has requested and received everything still pending.
+	 */
+	private abstract static class Operator<T> implements Subscriber<PathEvent>, Subscription {
+		protected final Subscriber<? super T> downstream;
+		protected volatile @Nullable Subscription upstream;
+		
+		// guarded by this
+		protected long demand;
+		protected boolean cancelled;
+		private boolean completed, terminated;
+		private @Nullable Throwable error;
+		
+		private final AtomicInteger pendingDrains = new AtomicInteger();
+		
+		protected Operator(final Subscriber<? super T> downstream) {
+			this.downstream = downstream;
+		}
+		
+		/**
+		 * Called while holding the lock. Must only return an item if there is demand, and must decrement the demand if it does.
+		 * 
+		 * @return The next item to deliver, or null if there is none yet
+		 */
+		protected abstract @Nullable T take();
+		
+		/**
+		 * Called while holding the lock.
+		 * 
+		 * @return Whether there are items that have not been delivered yet, e.g. because the subscriber has not requested them
+		 */
+		protected abstract boolean hasPending();
+		
+		/**
+		 * Called after an item was delivered, without holding the lock
+		 */
+		protected void delivered(final T item) {}
+		
+		/**
+		 * Stops any timers. Called while holding the lock.
+		 */
+		protected abstract void stop();
+		
+		/**
+		 * Delivers everything that can be delivered on the thread pool, unless a delivery is already running, which will then pick up the new state too.
+		 */
+		protected final void drain() {
+			if (pendingDrains.getAndIncrement() == 0)
+				Main.threadPool.execute(this::runDrain);
+		}
+		
+		private void runDrain() {
+			int missed = 1;
+			do {
+				while (true) {
+					final T item;
+					final Throwable error;
+					final boolean complete;
+					synchronized (this) {
+						if (terminated || cancelled && this.error == null)
+							break;
+						item = this.error == null ? take() : null;
+						error = this.error;
+						complete = item == null && error == null && completed && !hasPending(); // otherwise completes after the next request
+						if (item == null && (error != null || complete))
+							terminated = true;
+					}
+					if (item != null) {
+						downstream.onNext(item);
+						delivered(item);
+					} else if (error != null) {
+						downstream.onError(error);
+						break;
+					} else {
+						if (complete)
+							downstream.onComplete();
+						break;
+					}
+				}
+				missed = pendingDrains.addAndGet(-missed);
+			} while (missed != 0);
+		}
+		
+		@Override
+		public final void onError(final Throwable throwable) {
+			synchronized (this) {
+				stop();
+				if (error == null)
+					error = throwable;
+			}
+			drain();
+		}
+		
+		@Override
+		public final void onComplete() {
+			synchronized (this) {
+				stop();
+				completed = true;
+				completing();
+			}
+			drain();
+		}
+		
+		/**
+		 * Makes everything still pending deliverable. Called while holding the lock.
+		 */
+		protected abstract void completing();
+		
+		@Override
+		public final void request(final long n) {
+			synchronized (this) {
+				if (n <= 0) {
+					cancelUpstream();
+					if (error == null)
+						error = new IllegalArgumentException("Requested a non-positive number of items: " + n);
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+			}
+			drain();
+		}
+		
+		@Override
+		public final synchronized void cancel() {
+			cancelled = true;
+			cancelUpstream();
+		}
+		
+		// must be called while holding the lock
+		private void cancelUpstream() {
+			stop();
+			final Subscription upstream = this.upstream;
+			if (upstream != null)
+				upstream.cancel();
+		}
+	}
+	
+	private final static class Debouncing extends Operator<ChangeSet> {
+		private final Debouncer.Task task;
+		
+		// guarded by this
+		private ChangeSet.Builder changes = new ChangeSet.Builder();
+		private boolean ready;
+		
+		public Debouncing(final Subscriber<? super ChangeSet> downstream, final long delayMS, final long maxWaitMS) {
+			super(downstream);
+			task = Debouncer.SHARED.create(delayMS, maxWaitMS, () -> {
+				synchronized (this) {
+					ready = true;
+				}
+				drain();
+			});
+		}
+		
+		@Override
+		protected @Nullable ChangeSet take() {
+			if (!ready || demand == 0)
+				return null;
+			final ChangeSet changeSet = changes.build();
+			changes = new ChangeSet.Builder();
+			ready = false;
+			if (changeSet.isEmpty())
+				return null;
+			demand--;
+			return changeSet;
+		}
+		
+		@Override
+		protected boolean hasPending() {
+			return !changes.isEmpty();
+		}
+		
+		@Override
+		protected void stop() {
+			task.cancel();
+		}
+		
+		@Override
+		protected void completing() {
+			ready = true;
+		}
+		
+		@Override
+		public void onSubscribe(final Subscription subscription) {
+			upstream = subscription;
+			downstream.onSubscribe(this);
+			subscription.request(Long.MAX_VALUE); // changes are merged, so there's no need to limit them
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public void onNext(final PathEvent event) {
+			synchronized (this) {
+				if (event.isOverflow())
+					changes.eventsLost();
+				else
+					changes.add(event.path, (Kind<Path>) event.kind);
+			}
+			task.trigger();
+		}
+	}
+	
+	private final static class Batching extends Operator<List<PathEvent>> {
+		private final int maxSize;
+		private final Debouncer.Task timer;
+		
+		// guarded by this
+		private List<PathEvent> batch = new ArrayList<>();
+		private boolean timedOut;
+		
+		public Batching(final Subscriber<? super List<PathEvent>> downstream, final int maxSize, final long maxDelayMS) {
+			super(downstream);
+			this.maxSize = maxSize;
+			timer = Debouncer.SHARED.create(maxDelayMS, maxDelayMS, () -> {
+				synchronized (this) {
+					timedOut = true;
+				}
+				drain();
+			});
+		}
+		
+		@Override
+		protected @Nullable List<PathEvent> take() {
+			if (batch.isEmpty() || !timedOut && batch.size() < maxSize || demand == 0)
+				return null;
+			final List<PathEvent> b = batch;
+			batch = new ArrayList<>();
+			timedOut = false;
+			timer.cancel();
+			demand--;
+			return b;
+		}
+		
+		@Override
+		protected void delivered(final List<PathEvent> b) {
+			final Subscription upstream = this.upstream;
+			if (upstream != null)
+				upstream.request(b.size());
+		}
+		
+		@Override
+		protected boolean hasPending() {
+			return !batch.isEmpty();
+		}
+		
+		@Override
+		protected void stop() {
+			timer.cancel();
+		}
+		
+		@Override
+		protected void completing() {
+			timedOut = true;
+		}
+		
+		@Override
+		public void onSubscribe(final Subscription subscription) {
+			upstream = subscription;
+			downstream.onSubscribe(this);
+			subscription.request(maxSize);
+		}
+		
+		@Override
+		public void onNext(final PathEvent event) {
+			final boolean full;
+			synchronized (this) {
+				batch.add(event);
+				if (batch.size() == 1)
+					timer.trigger();
+				full = batch.size() >= maxSize;
+			}
+			if (full)
+				drain();
+		}
+	}
+	
+}
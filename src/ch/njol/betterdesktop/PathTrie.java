@@ -0,0 +1,127 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Maps paths to values, and can quickly find all values registered for a path or any of its parents.
+ * <p>
+ * Lookups are lock-free and can run concurrently with modifications, modifications are synchronized with each other.
+ * 
+ * @param <T> The type of the values
+ */
+public class PathTrie<T> {
+	
+	private final static class Node<T> {
+		private final @Nullable Node<T> parent;
+		private final @Nullable Path name;
+		private final ConcurrentHashMap<Path, Node<T>> children = new ConcurrentHashMap<>();
+		private final CopyOnWriteArrayList<T> values = new CopyOnWriteArrayList<>();
+		
+		public Node(final @Nullable Node<T> parent, final @Nullable Path name) {
+			this.parent = parent;
+			this.name = name;
+		}
+	}
+	
+	private final Node<T> root = new Node<>(null, null);
+	
+	private final @Nullable Node<T> find(final Path path) {
+		Node<T> n = root;
+		final Path pathRoot = path.getRoot();
+		if (pathRoot != null) {
+			n = n.children.get(pathRoot);
+			if (n == null)
+				return null;
+		}
+		for (final Path name : path) {
+			n = n.children.get(name);
+			if (n == null)
+				return null;
+		}
+		return n;
+	}
+	
+	private final Node<T> getOrCreate(final Node<T> parent, final Path name) {
+		return parent.children.computeIfAbsent(name, x -> new Node<>(parent, name));
+	}
+	
+	public synchronized void add(final Path path, final T value) {
+		Node<T> n = root;
+		final Path pathRoot = path.getRoot();
+		if (pathRoot != null)
+			n = getOrCreate(n, pathRoot);
+		for (final Path name : path)
+			n = getOrCreate(n, name);
+		n.values.add(value);
+	}
+	
+	/**
+	 * Removes a value previously added with {@link #add(Path, Object)}, and frees any nodes that are no longer needed.
+	 * 
+	 * @return Whether the value was found
+	 */
+	public synchronized boolean remove(final Path path, final T value) {
+		Node<T> n = find(path);
+		if (n == null || !n.values.remove(value))
+			return false;
+		Node<T> parent;
+		while ((parent = n.parent) != null && n.values.isEmpty() && n.children.isEmpty()) {
+			parent.children.remove(n.name, n);
+			n = parent;
+		}
+		return true;
+	}
+	
+	public synchronized void clear() {
+		root.children.clear();
+		root.values.clear();
+	}
+	
+	/**
+	 * Calls the given action for every value that was added for the given path or any of its parents, starting with the values of the topmost parent.
+	 */
+	public void forEachPrefix(final Path path, final Consumer<T> action) {
+		Node<T> n = root;
+		for (final T value : n.values)
+			action.accept(value);
+		final Path pathRoot = path.getRoot();
+		if (pathRoot != null) {
+			n = n.children.get(pathRoot);
+			if (n == null)
+				return;
+			for (final T value : n.values)
+				action.accept(value);
+		}
+		for (final Path name : path) {
+			n = n.children.get(name);
+			if (n == null)
+				return;
+			for (final T value : n.values)
+				action.accept(value);
+		}
+	}
+	
+}
@@ -0,0 +1,279 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package ch.njol.betterdesktop;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * An immutable map that shares structure between versions: adding or removing an entry only copies the O(log n) nodes on the path to it (a hash array mapped trie).
+ * 
+ * @param <K> The type of the keys, which must have proper {@link Object#hashCode()} and {@link Object#equals(Object)} methods
+ * @param <V> The type of the values
+ */
+public final class PersistentMap<K, V> {
+	
+	private final static class Entry<K, V> {
+		private final int hash;
+		private final K key;
+		private final V value;
+		
+		public Entry(final int hash, final K key, final V value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+	}
+	
+	/**
+	 * A node has up to 32 children, one for each value of the next 5 bits of the hashes. A child is an {@link Entry}, another node,
+	 * or an array of entries whose keys have the same hash.
+	 */
+	private final static class Node {
+		private final int bitmap; // which of the 32 possible children exist
+		private final Object[] children;
+		
+		public Node(final int bitmap, final Object[] children) {
+			this.bitmap = bitmap;
+			this.children = children;
+		}
+		
+		public int index(final int bit) {
+			return Integer.bitCount(bitmap & bit - 1);
+		}
+		
+		public Node withChild(final int bit, final Object child) {
+			final Object[] newChildren = children.clone();
+			newChildren[index(bit)] = child;
+			return new Node(bitmap, newChildren);
+		}
+		
+		public Node withNewChild(final int bit, final Object child) {
+			final int i = index(bit);
+			final Object[] newChildren = new Object[children.length + 1];
+			System.arraycopy(children, 0, newChildren, 0, i);
+			newChildren[i] = child;
+			System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+			return new Node(bitmap | bit, newChildren);
+		}
+		
+		public Node withoutChild(final int bit) {
+			final int i = index(bit);
+			final Object[] newChildren = new Object[children.length - 1];
+			System.arraycopy(children, 0, newChildren, 0, i);
+			System.arraycopy(children, i + 1, newChildren, i, children.length - i - 1);
+			return new Node(bitmap & ~bit, newChildren);
+		}
+	}
+	
+	private final static PersistentMap<?, ?> EMPTY = new PersistentMap<>(new Node(0, new Object[0]), 0);
+	
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentMap<K, V> empty() {
+		return (PersistentMap<K, V>) EMPTY;
+	}
+	
+	private final Node root;
+	private final int size;
+	
+	private PersistentMap(final Node root, final int size) {
+		this.root = root;
+		this.size = size;
+	}
+	
+	private static int hash(final Object key) {
+		final int h = key.hashCode();
+		return h ^ h >>> 16;
+	}
+	
+	private static int bit(final int hash, final int shift) {
+		return 1 << (hash >>> shift & 31);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public boolean containsKey(final Object key) {
+		return get(key) != null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public @Nullable V get(final Object key) {
+		final int hash = hash(key);
+		Node n = root;
+		for (int shift = 0;; shift += 5) {
+			final int bit = bit(hash, shift);
+			if ((n.bitmap & bit) == 0)
+				return null;
+			final Object child = n.children[n.index(bit)];
+			if (child instanceof Node) {
+				n = (Node) child;
+				continue;
+			}
+			if (child instanceof Entry) {
+				final Entry<K, V> e = (Entry<K, V>) child;
+				return e.hash == hash && e.key.equals(key) ? e.value : null;
+			}
+			for (final Entry<K, V> e : (Entry<K, V>[]) child) {
+				if (e.hash == hash && e.key.equals(key))
+					return e.value;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * @return A map with the given mapping, or this map if it already maps the key to this very value
+	 */
+	public PersistentMap<K, V> with(final K key, final V value) {
+		final int[] added = {0};
+		final Node newRoot = with(root, 0, new Entry<>(hash(key), key, value), added);
+		return newRoot == root ? this : new PersistentMap<>(newRoot, size + added[0]);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node with(final Node n, final int shift, final Entry<K, V> e, final int[] added) {
+		final int bit = bit(e.hash, shift);
+		if ((n.bitmap & bit) == 0) {
+			added[0] = 1;
+			return n.withNewChild(bit, e);
+		}
+		final Object child = n.children[n.index(bit)];
+		if (child instanceof Node) {
+			final Node newChild = with((Node) child, shift + 5, e, added);
+			return newChild == child ? n : n.withChild(bit, newChild);
+		}
+		if (child instanceof Entry) {
+			final Entry<K, V> old = (Entry<K, V>) child;
+			if (old.hash == e.hash && old.key.equals(e.key))
+				return old.value == e.value ? n : n.withChild(bit, e);
+			added[0] = 1;
+			if (old.hash == e.hash)
+				return n.withChild(bit, new Entry<?, ?>[] {old, e});
+			return n.withChild(bit, merge(old, old.hash, e, shift + 5));
+		}
+		final Entry<K, V>[] collisions = (Entry<K, V>[]) child;
+		if (collisions[0].hash != e.hash) {
+			added[0] = 1;
+			return n.withChild(bit, merge(collisions, collisions[0].hash, e, shift + 5));
+		}
+		for (int i = 0; i < collisions.length; i++) {
+			if (collisions[i].key.equals(e.key)) {
+				if (collisions[i].value == e.value)
+					return n;
+				final Entry<K, V>[] newCollisions = collisions.clone();
+				newCollisions[i] = e;
+				return n.withChild(bit, newCollisions);
+			}
+		}
+		added[0] = 1;
+		final Entry<K, V>[] newCollisions = Arrays.copyOf(collisions, collisions.length + 1);
+		newCollisions[collisions.length] = e;
+		return n.withChild(bit, newCollisions);
+	}
+	
+	/**
+	 * Creates a node with two children whose hashes differ
+	 */
+	private static Node merge(final Object child, final int childHash, final Entry<?, ?> e, final int shift) {
+		final int childBit = bit(childHash, shift), bit = bit(e.hash, shift);
+		if (childBit == bit)
+			return new Node(bit, new Object[] {merge(child, childHash, e, shift + 5)});
+		return new Node(childBit | bit, Integer.compareUnsigned(childBit, bit) < 0 ? new Object[] {child, e} : new Object[] {e, child}); // ordered like the bits
+	}
+	
+	/**
+	 * @return A map without the given key, or this map if it doesn't contain the key
+	 */
+	public PersistentMap<K, V> without(final Object key) {
+		final Node newRoot = without(root, 0, hash(key), key);
+		return newRoot == root ? this : new PersistentMap<>(newRoot, size - 1);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Node without(final Node n, final int shift, final int hash, final Object key) {
+		final int bit = bit(hash, shift);
+		if ((n.bitmap & bit) == 0)
+			return n;
+		final Object child = n.children[n.index(bit)];
+		if (child instanceof Node) {
+			final Node newChild = without((Node) child, shift + 5, hash, key);
+			if (newChild == child)
+				return n;
+			if (newChild.bitmap == 0)
+				return n.withoutChild(bit);
+			if (newChild.children.length == 1 && !(newChild.children[0] instanceof Node)) // no need for a node with a single entry
+				return n.withChild(bit, newChild.children[0]);
+			return n.withChild(bit, newChild);
+		}
+		if (child instanceof Entry) {
+			final Entry<?, ?> e = (Entry<?, ?>) child;
+			return e.hash == hash && e.key.equals(key) ? n.withoutChild(bit) : n;
+		}
+		final Entry<?, ?>[] collisions = (Entry<?, ?>[]) child;
+		for (int i = 0; i < collisions.length; i++) {
+			if (collisions[i].hash == hash && collisions[i].key.equals(key)) {
+				if (collisions.length == 2)
+					return n.withChild(bit, collisions[1 - i]);
+				final Entry<?, ?>[] newCollisions = new Entry<?, ?>[collisions.length - 1];
+				System.arraycopy(collisions, 0, newCollisions, 0, i);
+				System.arraycopy(collisions, i + 1, newCollisions, i, collisions.length - i - 1);
+				return n.withChild(bit, newCollisions);
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * Calls the given action for every entry, in no particular order
+	 */
+	public void forEach(final BiConsumer<? super K, ? super V> action) {
+		forEach(root, action);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <K, V> void forEach(final Node n, final BiConsumer<? super K, ? super V> action) {
+		for (final Object child : n.children) {
+			if (child instanceof Node) {
+				forEach((Node) child, action);
+			} else if (child instanceof Entry) {
+				action.accept(((Entry<K, V>) child).key, ((Entry<K, V>) child).value);
+			} else {
+				for (final Entry<K, V> e : (Entry<K, V>[]) child)
+					action.accept(e.key, e.value);
+			}
+		}
+	}
+	
+	@Override
+	public String toString() {
+		final StringBuilder b = new StringBuilder("{");
+		forEach((k, v) -> b.append(b.length() == 1 ? "" : ", ").append(k).append('=').append(v));
+		return b.append('}').toString();
+	}
+	
+}
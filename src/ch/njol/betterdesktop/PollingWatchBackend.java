@@ -0,0 +1,339 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Watches a directory tree by listing its directories over and over again. Meant for network shares and removable drives, whose watch services miss events or don't work at all.
+ * <p>
+ * Every directory is summarized by a fingerprint of the number, names, and modification times of its entries, and only directories whose fingerprint changed are compared entry by entry.
+ * Polls follow each other quickly after a change was found and back off while nothing changes, and a single poll lists at most {@link #MAX_DIRECTORIES_PER_POLL} directories,
+ * so that large trees are checked over several polls instead of flooding a slow drive. This includes directories that have not been listed yet, i.e. the whole tree when polling starts
+ * and new directories like a large folder copied onto the drive: they are listed first on the following polls, but within the same budget.
+ * <p>
+ * Changes are reported with the same events as a watch service would: creation, deletion and modification of the entries of watched directories.
+ */
+public class PollingWatchBackend implements WatchBackend {
+	
+	/**
+	 * The time between polls right after a change was found
+	 */
+	public final static long MIN_INTERVAL_MS = 500;
+	
+	/**
+	 * The time between polls after nothing changed for a while
+	 */
+	public final static long MAX_INTERVAL_MS = 16000;
+	
+	/**
+	 * The maximum number of directories listed per poll
+	 */
+	public final static int MAX_DIRECTORIES_PER_POLL = 200;
+	
+	private final static class Attributes {
+		private final boolean directory;
+		private final long lastModified, size;
+		
+		public Attributes(final BasicFileAttributes attrs) {
+			directory = attrs.isDirectory();
+			lastModified = attrs.lastModifiedTime().toMillis();
+			size = attrs.size();
+		}
+		
+		public boolean isSameAs(final Attributes other) {
+			return directory == other.directory && lastModified == other.lastModified && size == other.size;
+		}
+	}
+	
+	private final static class Listing {
+		private final Map<String, Attributes> entries;
+		private final long fingerprint;
+		
+		public Listing(final Map<String, Attributes> entries, final long fingerprint) {
+			this.entries = entries;
+			this.fingerprint = fingerprint;
+		}
+	}
+	
+	private final static Listing EMPTY = new Listing(Collections.emptyMap(), fingerprint(Collections.emptyMap()));
+	
+	/**
+	 * The listing of a directory that was there when it started being watched, but has not been listed yet. Its first listing is taken as it is, without reporting anything.
+	 */
+	private final static Listing UNKNOWN = new Listing(Collections.emptyMap(), 0);
+	
+	private final Path root;
+	private volatile WatchFilter filter;
+	
+	// only modified while holding the lock on this backend
+	private final ConcurrentSkipListMap<Path, Listing> directories = new ConcurrentSkipListMap<>();
+	
+	/**
+	 * Directories that have not been listed yet (with an {@link #EMPTY} or {@link #UNKNOWN} listing), listed before any others on the next polls
+	 */
+	private final ArrayDeque<Path> unlisted = new ArrayDeque<>(); // guarded by this backend
+	
+	// only accessed by the polling thread
+	private @Nullable Path cursor = null;
+	private long interval = MIN_INTERVAL_MS;
+	
+	private volatile boolean closed = false;
+	
+	/**
+	 * Does not access the file system. The tree is listed by the first polls to know what to compare later polls to, the root right away and everything else within the usual budget.
+	 * If the root cannot be read (e.g. because the drive is not connected), it is treated as empty, and everything in it is reported as created once it can be read.
+	 * 
+	 * @param filter Entries excluded by this filter will not be watched
+	 */
+	public PollingWatchBackend(final Path root, final WatchFilter filter) {
+		this.root = root;
+		this.filter = filter;
+		addTree(root);
+	}
+	
+	public int numWatchedDirectories() {
+		return directories.size();
+	}
+	
+	/**
+	 * @return The current time between polls in milliseconds
+	 */
+	public long getInterval() {
+		return interval;
+	}
+	
+	private static long fingerprint(final Map<String, Attributes> entries) {
+		long names = 0, times = 0;
+		// sums do not depend on the order of the entries
+		for (final Entry<String, Attributes> e : entries.entrySet()) {
+			final long nameHash = mix(e.getKey().hashCode());
+			names += nameHash;
+			times += mix(nameHash ^ e.getValue().lastModified ^ e.getValue().size << 1 ^ (e.getValue().directory ? 1 : 0));
+		}
+		return mix(entries.size()) ^ names ^ Long.rotateLeft(times, 32);
+	}
+	
+	private static long mix(long x) {
+		x = (x ^ x >>> 33) * 0xff51afd7ed558ccdL;
+		x = (x ^ x >>> 33) * 0xc4ceb9fe1a85ec53L;
+		return x ^ x >>> 33;
+	}
+	
+	/**
+	 * @return The current contents of the given directory that pass the filter, or null if it cannot be read
+	 */
+	private @Nullable Listing list(final Path dir) {
+		final WatchFilter filter = this.filter;
+		final Map<String, Attributes> entries = new HashMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (final Path p : stream) {
+				if (!filter.accepts(root, p))
+					continue;
+				try {
+					entries.put(p.getFileName().toString(), new Attributes(Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+				} catch (final IOException e) {
+					// deleted in the meantime
+				}
+			}
+		} catch (final IOException e) {
+			return null;
+		}
+		return new Listing(entries, fingerprint(entries));
+	}
+	
+	/**
+	 * Starts watching the given directory and all directories inside it, taking their contents when they are first listed as the state to compare later polls to.
+	 * Nothing is listed here: the directory is queued, and its subdirectories are queued when it is listed.
+	 */
+	private synchronized void addTree(final Path start) {
+		if (directories.put(start, UNKNOWN) != UNKNOWN)
+			unlisted.add(start);
+	}
+	
+	/**
+	 * Stops watching the given directory and all directories inside it.
+	 */
+	private synchronized void removeTree(final Path start) {
+		final String startString = start.toString();
+		// paths are sorted, so all paths inside 'start' follow it directly (possibly mixed with some siblings like 'start-2')
+		for (final Path dir : directories.tailMap(start, true).keySet()) {
+			if (!dir.startsWith(start)) {
+				if (!dir.toString().startsWith(startString))
+					break;
+				continue;
+			}
+			directories.remove(dir);
+		}
+	}
+	
+	@Override
+	public synchronized void register(final Path path) {
+		if (directories.containsKey(path) || !filter.accepts(root, path) || !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+			return;
+		addTree(path);
+	}
+	
+	@Override
+	public synchronized void filterChanged(final WatchFilter filter, final Path directory) {
+		this.filter = filter;
+		final String directoryString = directory.toString();
+		for (final Path dir : directories.tailMap(directory, false).keySet()) {
+			if (!dir.startsWith(directory)) {
+				if (!dir.toString().startsWith(directoryString))
+					break;
+				continue;
+			}
+			if (directories.containsKey(dir) && !filter.accepts(root, dir))
+				removeTree(dir);
+		}
+		if (directories.containsKey(directory))
+			addTree(directory);
+	}
+	
+	/**
+	 * Waits for the current interval, then checks the next {@link #MAX_DIRECTORIES_PER_POLL} directories for changes.
+	 */
+	@Override
+	public void poll(final EventSink sink) throws InterruptedException {
+		if (closed)
+			throw new ClosedWatchServiceException();
+		if (directories.get(root) != UNKNOWN) // the first poll lists the root right away
+			Thread.sleep(interval);
+		if (closed)
+			throw new ClosedWatchServiceException();
+		
+		// new directories first, then continue where the last poll stopped, and wrap around at the end
+		final Set<Path> toCheck = new LinkedHashSet<>();
+		synchronized (this) {
+			Path dir;
+			while (toCheck.size() < MAX_DIRECTORIES_PER_POLL && (dir = unlisted.poll()) != null)
+				toCheck.add(dir);
+		}
+		final Path cursor = this.cursor;
+		Path last = null;
+		for (final Path dir : cursor == null ? directories.keySet() : directories.tailMap(cursor, false).keySet()) {
+			if (toCheck.size() == MAX_DIRECTORIES_PER_POLL)
+				break;
+			if (toCheck.add(dir))
+				last = dir;
+		}
+		if (toCheck.size() < MAX_DIRECTORIES_PER_POLL && cursor != null) {
+			for (final Path dir : directories.headMap(cursor, true).keySet()) {
+				if (toCheck.size() == MAX_DIRECTORIES_PER_POLL)
+					break;
+				if (toCheck.add(dir))
+					last = dir;
+			}
+		}
+		if (last != null || directories.isEmpty())
+			this.cursor = last;
+		
+		boolean changed = false;
+		for (final Path dir : toCheck)
+			changed |= check(dir, sink);
+		final boolean moreUnlisted;
+		synchronized (this) {
+			moreUnlisted = !unlisted.isEmpty(); // including directories found by this poll
+		}
+		interval = changed || moreUnlisted ? MIN_INTERVAL_MS : Math.min(2 * interval, MAX_INTERVAL_MS);
+	}
+	
+	/**
+	 * Lists the given directory and reports all differences to its last listing.
+	 * 
+	 * @return Whether anything changed
+	 */
+	private synchronized boolean check(final Path dir, final EventSink sink) {
+		final Listing old = directories.get(dir);
+		if (old == null) // removed by an earlier check of this poll
+			return false;
+		Listing now = list(dir);
+		if (now == null) {
+			if (!dir.equals(root))
+				return false; // deleted, which is reported by its parent
+			now = EMPTY; // e.g. a disconnected drive: report everything as deleted, and as created again once it is back
+		}
+		if (old == UNKNOWN) {
+			// first listing of a directory that was already there: nothing to report, but its subdirectories have to be listed as well
+			directories.put(dir, now);
+			for (final Entry<String, Attributes> e : now.entries.entrySet()) {
+				final Path p = dir.resolve(e.getKey());
+				if (e.getValue().directory && !directories.containsKey(p))
+					addTree(p);
+			}
+			return false;
+		}
+		if (now.fingerprint == old.fingerprint)
+			return false;
+		directories.put(dir, now);
+		for (final Entry<String, Attributes> e : old.entries.entrySet()) {
+			final Attributes a = now.entries.get(e.getKey());
+			final Path p = dir.resolve(e.getKey());
+			if (a == null || a.directory != e.getValue().directory) {
+				if (e.getValue().directory)
+					removeTree(p);
+				sink.fileChanged(p, StandardWatchEventKinds.ENTRY_DELETE);
+				if (a != null)
+					created(p, a, sink);
+			} else if (!a.isSameAs(e.getValue())) {
+				sink.fileChanged(p, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+		}
+		for (final Entry<String, Attributes> e : now.entries.entrySet()) {
+			if (!old.entries.containsKey(e.getKey()))
+				created(dir.resolve(e.getKey()), e.getValue(), sink);
+		}
+		return true;
+	}
+	
+	/**
+	 * Reports a new entry. A new directory is listed by a later poll, which compares it to an empty listing and thus reports all of its contents as created.
+	 */
+	private synchronized void created(final Path p, final Attributes a, final EventSink sink) {
+		sink.fileChanged(p, StandardWatchEventKinds.ENTRY_CREATE);
+		if (a.directory && !directories.containsKey(p)) {
+			directories.put(p, EMPTY);
+			unlisted.add(p);
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		closed = true;
+	}
+	
+}
@@ -0,0 +1,221 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Watches a directory tree by registering every single directory in it. Works with any watch service, but needs one watch key per directory.
+ * <p>
+ * New directories are registered as soon as their creation is reported, and their registrations are dropped again when they are deleted or moved away.
+ */
+public class RecursiveWatchBackend implements WatchBackend {
+	
+	private final Path root;
+	private volatile WatchFilter filter;
+	private final WatchService watcher;
+	private volatile boolean failed = false;
+	
+	// only modified while holding the lock on this backend
+	private final ConcurrentHashMap<WatchKey, Path> directories = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Path, WatchKey> keys = new ConcurrentSkipListMap<>();
+	
+	public RecursiveWatchBackend(final Path root) throws IOException {
+		this(root, WatchFilter.ACCEPT_ALL);
+	}
+	
+	/**
+	 * @param filter Directories excluded by this filter (and their contents) will not be watched
+	 */
+	public RecursiveWatchBackend(final Path root, final WatchFilter filter) throws IOException {
+		this.root = root;
+		this.filter = filter;
+		watcher = root.getFileSystem().newWatchService();
+		try {
+			registerTree(root, null);
+		} catch (final IOException e) {
+			watcher.close();
+			throw e;
+		}
+	}
+	
+	public int numWatchedDirectories() {
+		return keys.size();
+	}
+	
+	/**
+	 * Registers the given directory and all its subdirectories. If a sink is given, creation events are sent for everything found below the directory,
+	 * as files may already have been created in there before the directory could be registered.
+	 */
+	private synchronized void registerTree(final Path start, final @Nullable EventSink sink) throws IOException {
+		final WatchFilter filter = this.filter;
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+				if (!dir.equals(root) && !filter.accepts(root, dir))
+					return FileVisitResult.SKIP_SUBTREE;
+				if (sink == null && keys.containsKey(dir))
+					return FileVisitResult.CONTINUE;
+				try {
+					final WatchKey key = dir.register(watcher, WATCHED_KINDS);
+					keys.put(dir, key);
+					directories.put(key, dir);
+				} catch (final IOException e) {
+					if (dir.equals(root))
+						throw e;
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				if (sink != null && !dir.equals(start))
+					sink.fileChanged(dir, StandardWatchEventKinds.ENTRY_CREATE);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				if (sink != null && filter.accepts(root, file))
+					sink.fileChanged(file, StandardWatchEventKinds.ENTRY_CREATE);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFileFailed(final Path file, final IOException exc) throws IOException {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	/**
+	 * Drops the registrations of the given directory and all its subdirectories.
+	 */
+	private synchronized void unregisterTree(final Path start) {
+		final String startString = start.toString();
+		// paths are sorted, so all paths inside 'start' follow it directly (possibly mixed with some siblings like 'start-2')
+		for (final Entry<Path, WatchKey> e : keys.tailMap(start, true).entrySet()) {
+			final Path dir = e.getKey();
+			if (!dir.startsWith(start)) {
+				if (!dir.toString().startsWith(startString))
+					break;
+				continue;
+			}
+			e.getValue().cancel();
+			directories.remove(e.getValue());
+			keys.remove(dir);
+		}
+	}
+	
+	@Override
+	public synchronized void register(final Path path) {
+		if (keys.containsKey(path) || !filter.accepts(root, path) || !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+			return;
+		try {
+			final WatchKey key = path.register(watcher, WATCHED_KINDS);
+			keys.put(path, key);
+			directories.put(key, path);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public synchronized void filterChanged(final WatchFilter filter, final Path directory) {
+		this.filter = filter;
+		final String directoryString = directory.toString();
+		for (final Path dir : keys.tailMap(directory, false).keySet()) {
+			if (!dir.startsWith(directory)) {
+				if (!dir.toString().startsWith(directoryString))
+					break;
+				continue;
+			}
+			if (keys.containsKey(dir) && !filter.accepts(root, dir))
+				unregisterTree(dir);
+		}
+		if (keys.containsKey(directory)) {
+			try {
+				registerTree(directory, null);
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public void poll(final EventSink sink) throws InterruptedException {
+		final WatchKey watchKey = watcher.take();
+		final Path dir = directories.get(watchKey);
+		if (dir == null) { // already unregistered
+			watchKey.cancel();
+			return;
+		}
+		for (final WatchEvent<?> event : watchKey.pollEvents()) {
+			final Path changed = (Path) event.context();
+			if (changed == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				sink.overflow(dir);
+				continue;
+			}
+			final Path path = dir.resolve(changed);
+			final Kind<Path> kind = (Kind<Path>) event.kind();
+			if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+				unregisterTree(path); // a moved directory keeps its watch key, but with a wrong path
+			sink.fileChanged(path, kind);
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE && filter.accepts(root, path) && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				try {
+					registerTree(path, sink);
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		if (!watchKey.reset()) {
+			synchronized (this) {
+				directories.remove(watchKey);
+				keys.remove(dir, watchKey);
+			}
+			if (dir.equals(root))
+				failed = true;
+		}
+	}
+	
+	@Override
+	public boolean hasFailed() {
+		return failed;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+	
+}
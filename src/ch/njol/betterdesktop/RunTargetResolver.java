@@ -0,0 +1,197 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds out which file is run when an icon is clicked, and remembers it for every directory.
+ * <p>
+ * A folder runs the first visible file inside it, or if it only contains folders, whatever its first entry runs.
+ * The result for a folder thus depends on the listings of a chain of nested folders, and is only forgotten when one of those listings changes.
+ */
+public final class RunTargetResolver {
+	
+	/**
+	 * The run target of a directory.
+	 */
+	public final static class Resolution {
+		/**
+		 * The run target relative to the directory
+		 */
+		public final Path target;
+		
+		/**
+		 * The innermost directory whose listing was needed to find the target. All directories between this one and the resolved directory were needed as well.
+		 */
+		public final Path lastDirectory;
+		
+		Resolution(final Path target, final Path lastDirectory) {
+			this.target = target;
+			this.lastDirectory = lastDirectory;
+		}
+	}
+	
+	private final DirectoryIndex index;
+	
+	// sorted to be able to invalidate whole subtrees
+	private final ConcurrentSkipListMap<Path, Resolution> cache = new ConcurrentSkipListMap<>();
+	
+	// incremented on every invalidation, so that a target that was resolved while a needed directory changed is not cached
+	private final AtomicLong generation = new AtomicLong();
+	
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+	
+	RunTargetResolver(final DirectoryIndex index) {
+		this.index = index;
+	}
+	
+	/**
+	 * @return The run target of the given file or folder relative to it, i.e. an empty path if it is run itself
+	 */
+	public Path resolve(final Path path) {
+		final Path start = index.toIndexPath(path);
+		final Resolution cached = cache.get(start);
+		if (cached != null) {
+			hits.increment();
+			return cached.target;
+		}
+		final long gen = generation.get();
+		Path current = start, target = start.getFileSystem().getPath("");
+		Path lastDirectory = null; // stays null if the start is not a directory
+		boolean cacheable = true;
+		while (true) {
+			if (current != start) {
+				final Resolution known = cache.get(current);
+				if (known != null) {
+					target = target.resolve(known.target);
+					lastDirectory = known.lastDirectory;
+					break;
+				}
+			}
+			final List<DirectoryIndex.Entry> contents = index.list(current);
+			if (contents == null) // not a directory
+				break;
+			lastDirectory = current;
+			if (!index.isWatched(current))
+				cacheable = false;
+			DirectoryIndex.Entry next = null;
+			for (final DirectoryIndex.Entry e : contents) {
+				if (!e.hidden && !e.name.startsWith(".") && !e.directory) {
+					next = e;
+					break;
+				}
+			}
+			if (next == null && !contents.isEmpty())
+				next = contents.get(0);
+			if (next == null)
+				break;
+			target = target.resolve(next.name);
+			if (!next.directory)
+				break;
+			current = next.path;
+		}
+		if (lastDirectory == null) // files resolve to themselves without any effort, so only directories are cached (and counted)
+			return target;
+		misses.increment();
+		if (cacheable) {
+			final Resolution resolution = new Resolution(target, lastDirectory);
+			cache.put(start, resolution);
+			if (generation.get() != gen) // changed while resolving it; use the result once, but don't keep it
+				cache.remove(start, resolution);
+		}
+		return target;
+	}
+	
+	/**
+	 * Fills this resolver with targets that were resolved earlier, e.g. in a previous run of Motunautr.
+	 */
+	void preload(final Map<Path, Resolution> knownTargets) {
+		generation.incrementAndGet();
+		for (final Map.Entry<Path, Resolution> e : knownTargets.entrySet()) {
+			if (index.isWatched(e.getValue().lastDirectory))
+				cache.put(e.getKey(), e.getValue());
+		}
+	}
+	
+	/**
+	 * @return A copy of all targets currently held by this resolver
+	 */
+	public Map<Path, Resolution> cachedTargets() {
+		return new TreeMap<>(cache);
+	}
+	
+	// invalidation, called by the directory index
+	
+	/**
+	 * Forgets the targets of all directories whose resolution needed the listing of the given directory.
+	 */
+	void listingChanged(final Path dir) {
+		generation.incrementAndGet();
+		// only the directory itself and its parents can depend on it
+		for (Path p = dir; p != null; p = p.getParent()) {
+			final Resolution r = cache.get(p);
+			if (r != null && r.lastDirectory.startsWith(dir))
+				cache.remove(p, r);
+		}
+	}
+	
+	/**
+	 * Forgets the targets of all directories inside the given one, and of all directories whose resolution needed the listing of any of them.
+	 */
+	void treeChanged(final Path start) {
+		listingChanged(start);
+		final String startString = start.toString();
+		// paths are sorted, so all paths inside 'start' follow it directly (possibly mixed with some siblings like 'start-2')
+		for (final Path p : cache.tailMap(start, true).keySet()) {
+			if (!p.startsWith(start)) {
+				if (!p.toString().startsWith(startString))
+					break;
+				continue;
+			}
+			cache.remove(p);
+		}
+	}
+	
+	// statistics
+	
+	public int numCachedTargets() {
+		return cache.size();
+	}
+	
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	@Override
+	public String toString() {
+		return "RunTargetResolver[" + numCachedTargets() + " targets cached, " + getHits() + " hits, " + getMisses() + " misses]";
+	}
+	
+}
@@ -69,6 +69,11 @@ public class Settings extends PropertiesEx {
 	
 	public MonitoredBoolean moveToFrontOnWindowsKey = new MonitoredBoolean(true);
 	
+	/**
+	 * How much memory the {@link IconCache} may use, in megabytes. Not shown in the settings window.
+	 */
+	public MonitoredInteger iconCacheSize = new MonitoredInteger(32);
+	
 	// settings window
 	
 	private static volatile @Nullable JFrame settingsWindow = null;
@@ -0,0 +1,176 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * The last known state of a directory tree, used to find out what changed in it while file watch events were lost.
+ * <p>
+ * Live events are recorded without touching the file system: created and modified files are stored without attributes,
+ * and are thus not reported as modified by the next rescan.
+ */
+public class TreeSnapshot {
+	
+	private final static class Attributes {
+		private final boolean directory;
+		private final long lastModified, size;
+		
+		public Attributes(final boolean directory, final long lastModified, final long size) {
+			this.directory = directory;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+		
+		public Attributes(final BasicFileAttributes attrs) {
+			this(attrs.isDirectory(), attrs.lastModifiedTime().toMillis(), attrs.size());
+		}
+		
+		public boolean isSameAs(final Attributes other) {
+			return this == UNKNOWN || other == UNKNOWN || directory == other.directory && lastModified == other.lastModified && size == other.size;
+		}
+	}
+	
+	private final static Attributes UNKNOWN = new Attributes(false, -1, -1);
+	
+	private final Path watchedDirectory;
+	private volatile WatchFilter filter;
+	
+	private final ConcurrentSkipListMap<Path, Attributes> entries = new ConcurrentSkipListMap<>();
+	
+	/**
+	 * @param filter Files excluded by this filter are not part of the snapshot
+	 */
+	public TreeSnapshot(final Path watchedDirectory, final WatchFilter filter) {
+		this.watchedDirectory = watchedDirectory;
+		this.filter = filter;
+	}
+	
+	/**
+	 * Changes the filter used by future rescans. Entries that the new filter excludes are dropped from the snapshot by the next rescan without being reported as deleted.
+	 */
+	public void setFilter(final WatchFilter filter) {
+		this.filter = filter;
+	}
+	
+	/**
+	 * Adds a file that was known to exist earlier (e.g. in a previous run of Motunautr) without doing any I/O.
+	 * The next rescan will then report whether it still exists and if it was modified.
+	 */
+	public void addKnown(final Path path, final boolean directory, final long lastModified, final long size) {
+		entries.put(path, new Attributes(directory, lastModified, size));
+	}
+	
+	/**
+	 * Records an event received from the file system without doing any I/O.
+	 */
+	public void eventReceived(final Path path, final Kind<Path> kind) {
+		if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			removeTree(path);
+		} else {
+			entries.put(path, UNKNOWN);
+		}
+	}
+	
+	private void removeTree(final Path start) {
+		final String startString = start.toString();
+		// paths are sorted, so all paths inside 'start' follow it directly (possibly mixed with some siblings like 'start-2')
+		for (final Path p : entries.tailMap(start, true).keySet()) {
+			if (!p.startsWith(start)) {
+				if (!p.toString().startsWith(startString))
+					break;
+				continue;
+			}
+			entries.remove(p);
+		}
+	}
+	
+	/**
+	 * Walks the given directory, updates this snapshot, and reports all differences between the old and new state of the directory to the given sink.
+	 * 
+	 * @param root The directory to rescan. Must be inside the directory this snapshot is for.
+	 * @param sink The sink to report differences to, or null to only update the snapshot (e.g. to take the initial snapshot)
+	 */
+	public void rescan(final Path root, final WatchBackend.@Nullable EventSink sink) throws IOException {
+		final WatchFilter filter = this.filter;
+		final Map<Path, Attributes> found = new TreeMap<>(); // sorted to report parents before their contents
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+				if (dir.equals(root))
+					return FileVisitResult.CONTINUE;
+				if (!filter.accepts(watchedDirectory, dir))
+					return FileVisitResult.SKIP_SUBTREE;
+				found.put(dir, new Attributes(attrs));
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				if (filter.accepts(watchedDirectory, file))
+					found.put(file, new Attributes(attrs));
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFileFailed(final Path file, final IOException exc) throws IOException {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		
+		final String rootString = root.toString();
+		for (final Entry<Path, Attributes> e : entries.tailMap(root, false).entrySet()) {
+			final Path p = e.getKey();
+			if (!p.startsWith(root)) {
+				if (!p.toString().startsWith(rootString))
+					break;
+				continue;
+			}
+			final Attributes now = found.remove(p);
+			if (now == null) {
+				entries.remove(p);
+				if (sink != null && filter.accepts(watchedDirectory, p))
+					sink.fileChanged(p, StandardWatchEventKinds.ENTRY_DELETE);
+			} else {
+				entries.put(p, now);
+				if (sink != null && !now.isSameAs(e.getValue()))
+					sink.fileChanged(p, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+		}
+		for (final Entry<Path, Attributes> e : found.entrySet()) {
+			entries.put(e.getKey(), e.getValue());
+			if (sink != null)
+				sink.fileChanged(e.getKey(), StandardWatchEventKinds.ENTRY_CREATE);
+		}
+	}
+	
+}
@@ -20,6 +20,11 @@ package ch.njol.betterdesktop;
 
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
 
 public abstract class Utils {
 	
@@ -31,4 +36,40 @@ public abstract class Utils {
 		return in.getLocation();
 	}
 	
+	/**
+	 * Renames a file or folder like {@link java.io.File#renameTo(java.io.File)}, but works on any file system.
+	 * 
+	 * @return Whether the file was renamed
+	 */
+	public static boolean rename(final Path file, final Path newFile) {
+		try {
+			Files.move(file, newFile);
+			return true;
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Copies a file, or a folder with all its contents.
+	 */
+	public static void copyRecursively(final Path source, final Path target) throws IOException {
+		try (Stream<Path> files = Files.walk(source)) {
+			for (final Path f : (Iterable<Path>) files::iterator)
+				Files.copy(f, target.resolve(source.relativize(f).toString()));
+		}
+	}
+	
+	/**
+	 * Deletes a file, or a folder with all its contents. Does nothing if the file doesn't exist.
+	 */
+	public static void deleteRecursively(final Path file) throws IOException {
+		if (!Files.exists(file))
+			return;
+		try (Stream<Path> files = Files.walk(file)) {
+			for (final Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+				Files.deleteIfExists(f);
+		}
+	}
+	
 }
@@ -0,0 +1,92 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+
+/**
+ * The part of a {@link FileWatcher} that talks to the operating system. A backend watches a whole directory tree and reports changes with absolute paths.
+ */
+public interface WatchBackend extends Closeable {
+	
+	public final static Kind<?>[] WATCHED_KINDS = {StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY};
+	
+	public interface EventSink {
+		public void fileChanged(Path path, Kind<Path> kind);
+		
+		/**
+		 * Called if events were lost inside the given directory (and possibly any of its subdirectories).
+		 */
+		public void overflow(Path directory);
+	}
+	
+	/**
+	 * Waits until changes are available and passes them to the given sink.
+	 * 
+	 * @throws java.nio.file.ClosedWatchServiceException if this backend has been closed
+	 */
+	public void poll(EventSink sink) throws InterruptedException;
+	
+	/**
+	 * Makes sure that the given path is watched if it is a directory, e.g. after it was found by a rescan.
+	 * Backends that watch whole trees natively don't need to do anything here.
+	 */
+	public default void register(final Path path) {}
+	
+	/**
+	 * Called when the filter changed for paths inside the given directory, so that directories that are now excluded can stop being watched,
+	 * and directories that are now included can start being watched. Backends that watch whole trees natively don't need to do anything here.
+	 */
+	public default void filterChanged(final WatchFilter filter, final Path directory) {}
+	
+	/**
+	 * @return Whether this backend stopped receiving changes for the watched directory, e.g. because the drive it is on was disconnected
+	 */
+	public default boolean hasFailed() {
+		return false;
+	}
+	
+	/**
+	 * Creates the best available backend for the given directory: a native recursive watch on Windows, or one that watches every single directory elsewhere.
+	 * Network shares, and directories that cannot be watched natively, are polled instead. The returned backend also switches to polling if native watching fails later.
+	 * 
+	 * @param filter Directories excluded by this filter will not be watched if the backend supports it
+	 */
+	public static WatchBackend create(final Path root, final WatchFilter filter) throws IOException {
+		return new FallbackWatchBackend(root, filter);
+	}
+	
+	/**
+	 * Creates a backend using the file system's watch service, i.e. without falling back to polling.
+	 * 
+	 * @throws UnsupportedOperationException if the file system has no watch service
+	 */
+	public static WatchBackend createNative(final Path root, final WatchFilter filter) throws IOException {
+		try {
+			return new FileTreeWatchBackend(root);
+		} catch (final UnsupportedOperationException e) {
+			return new RecursiveWatchBackend(root, filter);
+		}
+	}
+	
+}
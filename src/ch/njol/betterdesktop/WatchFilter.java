@@ -0,0 +1,189 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which changes inside a watched directory are of interest, using only the names in the changed path (i.e. without any file system access).
+ * Excluded changes are dropped by the {@link FileWatcher} before they reach any listener, and excluded directories are not watched at all if the backend allows it.
+ */
+public final class WatchFilter {
+	
+	public final static WatchFilter ACCEPT_ALL = new Builder().build();
+	
+	private final Set<Path> excludedSubtrees;
+	private final Set<String> excludedNames;
+	private final boolean excludeDotNames;
+	private final int maxDepth;
+	private final Map<Path, Integer> subtreeMaxDepths;
+	
+	private WatchFilter(final Builder builder) {
+		excludedSubtrees = Collections.unmodifiableSet(new HashSet<>(builder.excludedSubtrees));
+		excludedNames = Collections.unmodifiableSet(new HashSet<>(builder.excludedNames));
+		excludeDotNames = builder.excludeDotNames;
+		maxDepth = builder.maxDepth;
+		subtreeMaxDepths = Collections.unmodifiableMap(new HashMap<>(builder.subtreeMaxDepths));
+	}
+	
+	/**
+	 * @param root The watched directory
+	 * @param path A path inside the watched directory
+	 * @return Whether changes to the given path are of interest
+	 */
+	public boolean accepts(final Path root, final Path path) {
+		final int start = root.getNameCount(), end = path.getNameCount();
+		if (subtreeMaxDepths.isEmpty() && end - start > maxDepth)
+			return false;
+		long limit = (long) start + maxDepth; // the innermost subtree limit wins. long, as the default depth is Integer.MAX_VALUE
+		for (int i = start; i < end; i++) {
+			final String name = path.getName(i).toString();
+			if (excludeDotNames && name.startsWith("."))
+				return false;
+			if (!excludedNames.isEmpty() && excludedNames.contains(name.toLowerCase(Locale.ENGLISH)))
+				return false;
+			if (!excludedSubtrees.isEmpty() || !subtreeMaxDepths.isEmpty()) {
+				final Path relativePath = path.subpath(start, i + 1);
+				if (excludedSubtrees.contains(relativePath))
+					return false;
+				final Integer subtreeMaxDepth = subtreeMaxDepths.get(relativePath);
+				if (subtreeMaxDepth != null)
+					limit = i + 1L + subtreeMaxDepth;
+			}
+		}
+		return end <= limit;
+	}
+	
+	/**
+	 * @return The maximum depth of changes of interest below the given directory, relative to that directory
+	 */
+	public int maxDepth(final Path relativePath) {
+		int limit = maxDepth;
+		for (int i = 0; i < relativePath.getNameCount(); i++) {
+			final Integer subtreeMaxDepth = subtreeMaxDepths.get(relativePath.subpath(0, i + 1));
+			if (subtreeMaxDepth != null)
+				limit = i + 1 + subtreeMaxDepth;
+		}
+		return limit - relativePath.getNameCount();
+	}
+	
+	/**
+	 * @return A filter that is equal to this one except for the maximum depth below the given directory, or this filter if that depth is already the given one
+	 * @see Builder#maxDepth(Path, int)
+	 */
+	public WatchFilter withMaxDepth(final Path relativePath, final int maxDepth) {
+		if (maxDepth(relativePath) == maxDepth)
+			return this;
+		return new Builder(this).maxDepth(relativePath, maxDepth).build();
+	}
+	
+	/**
+	 * @return A filter that is equal to this one except that the given directory has no maximum depth of its own any more, or this filter if it didn't have one
+	 */
+	public WatchFilter withoutMaxDepth(final Path relativePath) {
+		if (!subtreeMaxDepths.containsKey(relativePath))
+			return this;
+		return new Builder(this).removeMaxDepth(relativePath).build();
+	}
+	
+	public final static class Builder {
+		
+		private final Set<Path> excludedSubtrees = new HashSet<>();
+		private final Set<String> excludedNames = new HashSet<>();
+		private boolean excludeDotNames = false;
+		private int maxDepth = Integer.MAX_VALUE;
+		private final Map<Path, Integer> subtreeMaxDepths = new HashMap<>();
+		
+		public Builder() {}
+		
+		/**
+		 * Creates a builder that starts out with all the settings of the given filter
+		 */
+		public Builder(final WatchFilter filter) {
+			excludedSubtrees.addAll(filter.excludedSubtrees);
+			excludedNames.addAll(filter.excludedNames);
+			excludeDotNames = filter.excludeDotNames;
+			maxDepth = filter.maxDepth;
+			subtreeMaxDepths.putAll(filter.subtreeMaxDepths);
+		}
+		
+		/**
+		 * @param relativePath A path relative to the watched directory, which will be ignored including all its contents
+		 */
+		public Builder excludeSubtree(final Path relativePath) {
+			excludedSubtrees.add(relativePath);
+			return this;
+		}
+		
+		/**
+		 * Ignores all files and folders with the given name (case insensitive), including their contents
+		 */
+		public Builder excludeName(final String name) {
+			excludedNames.add(name.toLowerCase(Locale.ENGLISH));
+			return this;
+		}
+		
+		/**
+		 * Ignores all files and folders whose name starts with a dot, including their contents
+		 */
+		public Builder excludeDotNames() {
+			excludeDotNames = true;
+			return this;
+		}
+		
+		/**
+		 * Ignores everything nested deeper than the given depth. Direct children of the watched directory have a depth of 1.
+		 */
+		public Builder maxDepth(final int maxDepth) {
+			this.maxDepth = maxDepth;
+			return this;
+		}
+		
+		/**
+		 * Ignores everything nested deeper than the given depth below the given directory, overriding any limit set for the whole watched directory or a parent directory.
+		 * 
+		 * @param relativePath A path relative to the watched directory
+		 * @param maxDepth The maximum depth relative to the given directory, i.e. its direct children have a depth of 1
+		 */
+		public Builder maxDepth(final Path relativePath, final int maxDepth) {
+			subtreeMaxDepths.put(relativePath, maxDepth);
+			return this;
+		}
+		
+		/**
+		 * Removes the maximum depth set for the given directory, if any
+		 */
+		public Builder removeMaxDepth(final Path relativePath) {
+			subtreeMaxDepths.remove(relativePath);
+			return this;
+		}
+		
+		public WatchFilter build() {
+			return new WatchFilter(this);
+		}
+		
+	}
+	
+}
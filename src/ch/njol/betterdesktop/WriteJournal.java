@@ -0,0 +1,226 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ch.njol.betterdesktop;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers changes Motunautr makes to files itself, so that the {@link FileWatcher} can drop the events caused by them.
+ * <p>
+ * Writers register a change before making it and call {@link #written(Path)} once it is complete (or {@link #failed(Path)} if it failed).
+ * Until then, all events for the registered path are considered echoes, as a long copy causes several events while the file is still incomplete.
+ * After completion, events are considered echoes for a short time, as long as the file still has the expected size (and modification time, if known).
+ */
+public final class WriteJournal {
+	
+	public final static WriteJournal INSTANCE = new WriteJournal();
+	
+	/**
+	 * How long after being registered a change is expected to cause events
+	 */
+	public final static long EXPIRY_MS = 2000;
+	
+	private final static class Expectation {
+		private final boolean deletion;
+		private final long size; // -1 if unknown
+		private volatile long lastModified = -1; // -1 if unknown
+		private volatile boolean complete = false;
+		private volatile long expires = Long.MAX_VALUE; // set on completion
+		
+		public Expectation(final boolean deletion, final long size) {
+			this.deletion = deletion;
+			this.size = size;
+		}
+	}
+	
+	private final ConcurrentHashMap<Path, Expectation> expectations = new ConcurrentHashMap<>();
+	
+	private void expect(final Path path, final Expectation e) {
+		if (expectations.size() > 64) {
+			final long now = System.currentTimeMillis();
+			expectations.values().removeIf(x -> x.expires < now);
+		}
+		expectations.put(FileWatcher.toCanonicalPath(path), e);
+	}
+	
+	/**
+	 * Registers that the given number of bytes is about to be written to the given file.
+	 * Must be followed by {@link #written(Path)} or {@link #failed(Path)}.
+	 */
+	public void expectWrite(final Path path, final long size) {
+		expect(path, new Expectation(false, size));
+	}
+	
+	/**
+	 * Registers that the given file or folder is about to be created, e.g. by moving it.
+	 */
+	public void expectCreate(final Path path) {
+		expect(path, new Expectation(false, -1));
+	}
+	
+	/**
+	 * Registers that the given file or folder is about to be deleted, e.g. by moving it away.
+	 */
+	public void expectDelete(final Path path) {
+		expect(path, new Expectation(true, -1));
+	}
+	
+	/**
+	 * Marks a registered change as complete. For a file, this also records its modification time, so that a later write by another program with the same size is not mistaken for an echo.
+	 */
+	public void written(final Path path) {
+		final Expectation e = expectations.get(FileWatcher.toCanonicalPath(path));
+		if (e == null)
+			return;
+		if (!e.deletion) {
+			try {
+				final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (attrs.isRegularFile()) // a folder's modification time changes with its contents
+					e.lastModified = attrs.lastModifiedTime().toMillis();
+			} catch (final IOException ex) {}
+		}
+		e.expires = System.currentTimeMillis() + EXPIRY_MS;
+		e.complete = true;
+	}
+	
+	/**
+	 * Forgets a registered change that could not be made.
+	 */
+	public void failed(final Path path) {
+		expectations.remove(FileWatcher.toCanonicalPath(path));
+	}
+	
+	/**
+	 * Writes the given data to a file, making sure that the file watcher ignores the write.
+	 */
+	public void write(final Path path, final byte[] data) throws IOException {
+		expectWrite(path, data.length);
+		try {
+			Files.write(path, data);
+		} catch (final IOException e) {
+			failed(path);
+			throw e;
+		}
+		written(path);
+	}
+	
+	/**
+	 * Copies a file, or a folder with all its contents, making sure that the file watcher ignores the copy.
+	 */
+	public void copy(final Path source, final Path target) throws IOException {
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+				final Path t = target.resolve(source.relativize(dir).toString());
+				expectCreate(t);
+				try {
+					Files.copy(dir, t);
+				} catch (final IOException e) {
+					failed(t);
+					throw e;
+				}
+				written(t);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				final Path t = target.resolve(source.relativize(file).toString());
+				expectWrite(t, attrs.isRegularFile() ? attrs.size() : -1);
+				try {
+					Files.copy(file, t);
+				} catch (final IOException e) {
+					failed(t);
+					throw e;
+				}
+				written(t);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	/**
+	 * Moves a file or folder into another folder, making sure that the file watcher ignores it appearing at the target.
+	 * Its removal from the source is still reported, as the source may be shown by a different window (e.g. the one it was dragged from).
+	 */
+	public void moveInto(final Path source, final Path target) throws IOException {
+		expectCreate(target);
+		try {
+			Files.move(source, target);
+		} catch (final IOException e) {
+			failed(target);
+			throw e;
+		}
+		written(target);
+	}
+	
+	/**
+	 * Moves a file or folder, making sure that the file watcher ignores the move.
+	 */
+	public void move(final Path source, final Path target) throws IOException {
+		expectDelete(source);
+		expectCreate(target);
+		try {
+			Files.move(source, target);
+		} catch (final IOException e) {
+			failed(source);
+			failed(target);
+			throw e;
+		}
+		written(source);
+		written(target);
+	}
+	
+	/**
+	 * @param path A canonical path, as sent by the file watcher
+	 * @return Whether the given event was most likely caused by a registered change. The file's attributes are only read if a change to it was registered.
+	 */
+	public boolean isEcho(final Path path, final Kind<Path> kind) {
+		final Expectation e = expectations.get(path);
+		if (e == null)
+			return false;
+		if (!e.complete)
+			return (kind == StandardWatchEventKinds.ENTRY_DELETE) == e.deletion;
+		if (e.expires < System.currentTimeMillis()) {
+			expectations.remove(path, e);
+			return false;
+		}
+		if (kind == StandardWatchEventKinds.ENTRY_DELETE || e.deletion)
+			return kind == StandardWatchEventKinds.ENTRY_DELETE && e.deletion;
+		final long lastModified = e.lastModified;
+		if (e.size < 0 && lastModified < 0)
+			return true;
+		try {
+			final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			return (e.size < 0 || attrs.size() == e.size) && (lastModified < 0 || attrs.lastModifiedTime().toMillis() == lastModified);
+		} catch (final IOException ex) {
+			return false;
+		}
+	}
+	
+}
@@ -0,0 +1,150 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package ch.njol.betterdesktop.bench;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.njol.betterdesktop.ChangeSet;
+import ch.njol.betterdesktop.Debouncer;
+import ch.njol.betterdesktop.FileWatcher;
+
+/**
+ * Pushes a storm of events at many {@link FileWatcher.DirectoryListener}s (100,000 events per second at 200 listeners by default), the way the file watcher's mailboxes deliver them,
+ * and checks the {@link Debouncer}: listeners must keep firing at least every maximum wait while the storm lasts, and fire once more after it ends.
+ * <p>
+ * Arguments: [events per second] [number of listeners] [seconds] [number of producer threads]
+ */
+public final class DebouncerStormBenchmark {
+	
+	private DebouncerStormBenchmark() {}
+	
+	private final static long DELAY_MS = 100, MAX_WAIT_MS = 1000;
+	private final static int FILES_PER_LISTENER = 50;
+	
+	private final static class Listener extends FileWatcher.DirectoryListener {
+		private final Path[] files = new Path[FILES_PER_LISTENER];
+		private final List<Long> fires = new ArrayList<>(); // guarded by itself
+		
+		public Listener(final int index) {
+			super(DELAY_MS, MAX_WAIT_MS);
+			for (int i = 0; i < files.length; i++)
+				files[i] = Paths.get("storm", "group " + index, "file " + i);
+		}
+		
+		@Override
+		public void directoryChanged(final ChangeSet changes) {
+			final long now = System.nanoTime();
+			synchronized (fires) {
+				fires.add(now);
+			}
+		}
+	}
+	
+	public static void main(final String[] args) throws InterruptedException {
+		final int eventsPerSecond = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		final int numListeners = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		final int numProducers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		
+		final Listener[] listeners = new Listener[numListeners];
+		for (int i = 0; i < numListeners; i++)
+			listeners[i] = new Listener(i);
+		
+		// each producer sends its share of events in slices of one millisecond, spread over all listeners
+		final double eventsPerSlice = (double) eventsPerSecond / numProducers / 1000;
+		final long sliceNanos = TimeUnit.MILLISECONDS.toNanos(1);
+		final AtomicLong sent = new AtomicLong(), triggerNanos = new AtomicLong();
+		final long stormStart = System.nanoTime(), stormEnd = stormStart + TimeUnit.SECONDS.toNanos(seconds);
+		final List<Thread> producers = new ArrayList<>();
+		for (int p = 0; p < numProducers; p++) {
+			final int producer = p;
+			final Thread t = new Thread(() -> {
+				long n = 0, busy = 0;
+				double due = 0;
+				for (long slice = stormStart; slice < stormEnd; slice += sliceNanos) {
+					final long wait = slice - System.nanoTime();
+					if (wait > 0)
+						LockSupport.parkNanos(wait);
+					due += eventsPerSlice;
+					final long start = System.nanoTime();
+					for (; n < due; n++) {
+						final Listener l = listeners[(int) ((n * numProducers + producer) % numListeners)];
+						l.fileChanged(l.files[(int) (n % FILES_PER_LISTENER)], StandardWatchEventKinds.ENTRY_MODIFY);
+					}
+					busy += System.nanoTime() - start;
+				}
+				sent.addAndGet(n);
+				triggerNanos.addAndGet(busy);
+			}, "Storm producer " + p);
+			producers.add(t);
+			t.start();
+		}
+		for (final Thread t : producers)
+			t.join();
+		final long actualEnd = System.nanoTime();
+		Thread.sleep(2 * DELAY_MS + 100); // wait for the trailing fires
+		
+		int minFires = Integer.MAX_VALUE, maxFires = 0, totalFires = 0, withoutTrailingFire = 0;
+		long maxGap = 0, maxTrailing = 0;
+		for (final Listener l : listeners) {
+			final List<Long> fires;
+			synchronized (l.fires) {
+				fires = new ArrayList<>(l.fires);
+			}
+			minFires = Math.min(minFires, fires.size());
+			maxFires = Math.max(maxFires, fires.size());
+			totalFires += fires.size();
+			long last = stormStart;
+			for (final long fire : fires) {
+				if (fire > actualEnd)
+					break;
+				maxGap = Math.max(maxGap, fire - last);
+				last = fire;
+			}
+			maxGap = Math.max(maxGap, actualEnd - last);
+			if (fires.isEmpty() || fires.get(fires.size() - 1) <= actualEnd)
+				withoutTrailingFire++;
+			else
+				maxTrailing = Math.max(maxTrailing, fires.get(fires.size() - 1) - actualEnd);
+		}
+		
+		final double rate = sent.get() * 1e9 / (actualEnd - stormStart);
+		System.out.println(String.format("Sent %,d events to %d listeners in %.2f s (%,.0f events/s, %.0f ns per event)",
+				sent.get(), numListeners, (actualEnd - stormStart) / 1e9, rate, (double) triggerNanos.get() / Math.max(1, sent.get())));
+		System.out.println(String.format("Fires per listener: %d to %d, %.1f on average (delay %d ms, maximum wait %d ms)",
+				minFires, maxFires, (double) totalFires / numListeners, DELAY_MS, MAX_WAIT_MS));
+		System.out.println("Longest time without a fire during the storm: " + maxGap / 1000000 + " ms");
+		System.out.println("Latest trailing fire: " + maxTrailing / 1000000 + " ms after the storm; listeners without one: " + withoutTrailingFire);
+		
+		final boolean ok = rate >= 0.9 * eventsPerSecond
+				&& maxGap <= TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS + DELAY_MS)
+				&& withoutTrailingFire == 0;
+		System.out.println(ok ? "OK" : "FAILED");
+		System.exit(ok ? 0 : 1);
+	}
+	
+}
@@ -0,0 +1,148 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package ch.njol.betterdesktop.bench;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ch.njol.betterdesktop.ChangeSet;
+import ch.njol.betterdesktop.DirectoryIndex;
+import ch.njol.betterdesktop.FileWatcher;
+import ch.njol.betterdesktop.FolderModel;
+import ch.njol.betterdesktop.IconCache;
+import ch.njol.betterdesktop.memfs.MemoryFileSystem;
+import ch.njol.betterdesktop.memfs.MemoryFileSystemProvider;
+
+/**
+ * Loads a desktop of 10,000 icons (100 groups of 100 icons) from an in-memory file system like Motunautr does on startup, and prints how long each step takes.
+ * <p>
+ * Windows and shell icons are not created, as they need a display and real files. What is measured is everything behind them: watching the main folder,
+ * reading the groups, resolving run targets, looking up icons in the {@link IconCache}, and picking up changes through the file watcher.
+ * <p>
+ * Arguments: [number of groups] [icons per group]
+ */
+public final class IconLoadBenchmark {
+	
+	private IconLoadBenchmark() {}
+	
+	public static void main(final String[] args) throws IOException, InterruptedException {
+		final int numGroups = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		final int iconsPerGroup = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		
+		final MemoryFileSystem fs = MemoryFileSystemProvider.INSTANCE.newFileSystem("benchmark");
+		final Path mainFolder = fs.getPath("/Motunautr");
+		
+		long start = System.nanoTime();
+		final List<Path> groups = new ArrayList<>();
+		for (int g = 0; g < numGroups; g++) {
+			final Path group = mainFolder.resolve(String.format("Group %03d", g));
+			Files.createDirectories(group);
+			groups.add(group);
+			for (int i = 0; i < iconsPerGroup; i++) {
+				if (i % 10 == 9) { // every tenth icon is a folder that runs a file inside it
+					final Path folder = group.resolve(String.format("Folder %03d", i));
+					Files.createDirectory(folder);
+					Files.write(folder.resolve("App.exe"), new byte[256]);
+					Files.write(folder.resolve("readme.txt"), new byte[16]);
+				} else {
+					Files.write(group.resolve(String.format("Link %03d.lnk", i)), new byte[64]);
+				}
+			}
+		}
+		report("Created " + numGroups * iconsPerGroup + " icons", start);
+		
+		start = System.nanoTime();
+		final FileWatcher watcher = new FileWatcher(mainFolder);
+		report("Started watching", start);
+		
+		start = System.nanoTime();
+		int icons = load(watcher.index, groups);
+		report("First load of " + icons + " icons", start);
+		
+		start = System.nanoTime();
+		icons = load(watcher.index, groups);
+		report("Second load of " + icons + " icons", start);
+		System.out.println(watcher.index);
+		System.out.println(watcher.index.runTargets);
+		System.out.println(IconCache.INSTANCE);
+		
+		// change one icon in every group, and wait until every group's listener has reloaded it
+		final Set<Path> changed = ConcurrentHashMap.newKeySet();
+		final CountDownLatch allChanged = new CountDownLatch(numGroups);
+		for (final Path group : groups) {
+			watcher.addListener(group, new FileWatcher.DirectoryListener(10) {
+				@Override
+				public void directoryChanged(final ChangeSet changes) {
+					FolderModel.read(watcher.index, group, false, Integer.MAX_VALUE, FolderModel.nextVersion());
+					if (changed.add(group))
+						allChanged.countDown();
+				}
+			});
+		}
+		start = System.nanoTime();
+		for (final Path group : groups)
+			Files.write(group.resolve("Link 000.lnk"), new byte[128]);
+		final boolean complete = allChanged.await(30, TimeUnit.SECONDS);
+		report(complete ? "Picked up a change in every group" : "Timed out waiting for changes (" + changed.size() + " of " + numGroups + " groups)", start);
+		
+		watcher.close();
+		fs.close();
+		System.exit(complete ? 0 : 1);
+	}
+	
+	private final static Image linkIcon = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB), appIcon = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+	
+	/**
+	 * Reads all groups and looks up the icon of every file in them like a window does. Icons that are not cached yet are put into the cache.
+	 * 
+	 * @return The number of icons
+	 */
+	private static int load(final DirectoryIndex index, final List<Path> groups) {
+		int icons = 0;
+		for (final Path group : groups) {
+			final FolderModel model = FolderModel.read(index, group, false, Integer.MAX_VALUE, FolderModel.nextVersion());
+			for (final FolderModel.Item item : model.items) {
+				final Path fileToRun = item.file.resolve(index.runTargets.resolve(item.file));
+				final DirectoryIndex.Entry target = index.get(fileToRun);
+				final long lastModified = target == null ? -1 : target.lastModified;
+				if (IconCache.INSTANCE.get(fileToRun, lastModified) == null) {
+					final boolean isApp = fileToRun.toString().endsWith(".exe");
+					IconCache.INSTANCE.put(fileToRun, lastModified, isApp ? "app" : "link", isApp ? appIcon : linkIcon);
+				}
+				icons++;
+			}
+		}
+		return icons;
+	}
+	
+	private static void report(final String step, final long startNanos) {
+		System.out.println(step + ": " + (System.nanoTime() - startNanos) / 1000000 + " ms");
+	}
+	
+}
@@ -0,0 +1,7 @@
+/**
+ * Benchmarks that can be run as main classes. They don't need a display or the user's files.
+ */
+@org.eclipse.jdt.annotation.NonNullByDefault({PARAMETER, RETURN_TYPE, FIELD, TYPE_BOUND, TYPE_ARGUMENT, ARRAY_CONTENTS})
+package ch.njol.betterdesktop.bench;
+
+import static org.eclipse.jdt.annotation.DefaultLocation.*;
@@ -0,0 +1,606 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package ch.njol.betterdesktop.memfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A file system that keeps all files in memory. Supports files and directories (no links), the "basic" file attribute view, and watch services.
+ * <p>
+ * Watch services report changes like on Linux: a key of a directory gets events for its direct children, and changing a file's contents causes an {@link StandardWatchEventKinds#ENTRY_MODIFY} event
+ * when the channel it was changed through is closed. Keys registered with {@link com.sun.nio.file.ExtendedWatchEventModifier#FILE_TREE} get events for the whole tree, like on Windows.
+ * <p>
+ * All operations are synchronized on the file system.
+ */
+public final class MemoryFileSystem extends FileSystem {
+	
+	abstract static class Node {
+		long created = System.currentTimeMillis();
+		long lastModified = created;
+	}
+	
+	final static class Directory extends Node {
+		final TreeMap<String, Node> children = new TreeMap<>();
+	}
+	
+	final static class FileNode extends Node {
+		byte[] data = new byte[0];
+		int size = 0;
+	}
+	
+	private final static class Attributes implements BasicFileAttributes {
+		private final Node node;
+		private final boolean directory;
+		private final long created, lastModified, size;
+		
+		public Attributes(final Node node) {
+			this.node = node;
+			directory = node instanceof Directory;
+			created = node.created;
+			lastModified = node.lastModified;
+			size = directory ? 0 : ((FileNode) node).size;
+		}
+		
+		@Override
+		public FileTime lastModifiedTime() {
+			return FileTime.fromMillis(lastModified);
+		}
+		
+		@Override
+		public FileTime lastAccessTime() {
+			return FileTime.fromMillis(lastModified);
+		}
+		
+		@Override
+		public FileTime creationTime() {
+			return FileTime.fromMillis(created);
+		}
+		
+		@Override
+		public boolean isRegularFile() {
+			return !directory;
+		}
+		
+		@Override
+		public boolean isDirectory() {
+			return directory;
+		}
+		
+		@Override
+		public boolean isSymbolicLink() {
+			return false;
+		}
+		
+		@Override
+		public boolean isOther() {
+			return false;
+		}
+		
+		@Override
+		public long size() {
+			return size;
+		}
+		
+		@Override
+		public Object fileKey() {
+			return node;
+		}
+	}
+	
+	private final MemoryFileSystemProvider provider;
+	final String name;
+	final MemoryPath root;
+	private final Directory rootNode = new Directory();
+	private volatile boolean open = true;
+	private final List<MemoryWatchService> watchServices = new CopyOnWriteArrayList<>();
+	
+	MemoryFileSystem(final MemoryFileSystemProvider provider, final String name) {
+		this.provider = provider;
+		this.name = name;
+		root = new MemoryPath(this, true, new String[0]);
+	}
+	
+	@Override
+	public MemoryFileSystemProvider provider() {
+		return provider;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (!open)
+			return;
+		open = false;
+		provider.closed(this);
+		for (final MemoryWatchService watchService : watchServices)
+			watchService.close();
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+	
+	@Override
+	public boolean isReadOnly() {
+		return false;
+	}
+	
+	@Override
+	public String getSeparator() {
+		return "/";
+	}
+	
+	@Override
+	public Iterable<Path> getRootDirectories() {
+		return Collections.singletonList(root);
+	}
+	
+	@Override
+	public Iterable<FileStore> getFileStores() {
+		return Collections.emptyList();
+	}
+	
+	@Override
+	public Set<String> supportedFileAttributeViews() {
+		return Collections.singleton("basic");
+	}
+	
+	@Override
+	public Path getPath(final String first, final String... more) {
+		if (more.length == 0)
+			return MemoryPath.parse(this, first);
+		return MemoryPath.parse(this, first + "/" + String.join("/", more));
+	}
+	
+	@Override
+	public PathMatcher getPathMatcher(final String syntaxAndPattern) {
+		final int i = syntaxAndPattern.indexOf(':');
+		if (i < 0)
+			throw new IllegalArgumentException("Missing syntax in " + syntaxAndPattern);
+		final String syntax = syntaxAndPattern.substring(0, i), pattern = syntaxAndPattern.substring(i + 1);
+		final Pattern regex;
+		if (syntax.equalsIgnoreCase("regex"))
+			regex = Pattern.compile(pattern);
+		else if (syntax.equalsIgnoreCase("glob"))
+			regex = Pattern.compile(globToRegex(pattern));
+		else
+			throw new UnsupportedOperationException("Unsupported path matcher syntax " + syntax);
+		return path -> regex.matcher(path.toString()).matches();
+	}
+	
+	private static String globToRegex(final String glob) {
+		final StringBuilder regex = new StringBuilder();
+		boolean inGroup = false;
+		for (int i = 0; i < glob.length(); i++) {
+			final char c = glob.charAt(i);
+			if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+				regex.append(".*");
+				i++;
+			} else if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else if (c == '{') {
+				regex.append("(?:");
+				inGroup = true;
+			} else if (c == '}' && inGroup) {
+				regex.append(')');
+				inGroup = false;
+			} else if (c == ',' && inGroup) {
+				regex.append('|');
+			} else if (c == '[' || c == ']') {
+				regex.append(c);
+			} else if (c == '\\' && i + 1 < glob.length()) {
+				regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return regex.toString();
+	}
+	
+	@Override
+	public UserPrincipalLookupService getUserPrincipalLookupService() {
+		throw new UnsupportedOperationException();
+	}
+	
+	@Override
+	public MemoryWatchService newWatchService() throws IOException {
+		checkOpen();
+		final MemoryWatchService watchService = new MemoryWatchService(this);
+		watchServices.add(watchService);
+		return watchService;
+	}
+	
+	void watchServiceClosed(final MemoryWatchService watchService) {
+		watchServices.remove(watchService);
+	}
+	
+	@Override
+	public String toString() {
+		return MemoryFileSystemProvider.SCHEME + ":" + name;
+	}
+	
+	// file operations, called by the provider
+	
+	private void checkOpen() {
+		if (!open)
+			throw new ClosedFileSystemException();
+	}
+	
+	private static String[] names(final Path path) {
+		return ((MemoryPath) MemoryPath.toMemoryPath(path).toAbsolutePath().normalize()).names();
+	}
+	
+	private static MemoryPath absolute(final Path path) {
+		return (MemoryPath) MemoryPath.toMemoryPath(path).toAbsolutePath().normalize();
+	}
+	
+	// must be called while holding the lock
+	private @Nullable Node find(final String[] names, final int count) {
+		Node n = rootNode;
+		for (int i = 0; i < count; i++) {
+			if (!(n instanceof Directory))
+				return null;
+			n = ((Directory) n).children.get(names[i]);
+			if (n == null)
+				return null;
+		}
+		return n;
+	}
+	
+	// must be called while holding the lock
+	private Node get(final Path path) throws NoSuchFileException {
+		final String[] names = names(path);
+		final Node n = find(names, names.length);
+		if (n == null)
+			throw new NoSuchFileException(path.toString());
+		return n;
+	}
+	
+	// must be called while holding the lock
+	private Directory getParent(final Path path) throws IOException {
+		final String[] names = names(path);
+		if (names.length == 0)
+			throw new FileSystemException(path.toString(), null, "The root has no parent");
+		final Node parent = find(names, names.length - 1);
+		if (parent == null)
+			throw new NoSuchFileException(path.toString(), null, "The parent directory does not exist");
+		if (!(parent instanceof Directory))
+			throw new NotDirectoryException(path.getParent() + "");
+		return (Directory) parent;
+	}
+	
+	private static String fileName(final Path path) {
+		final String[] names = names(path);
+		return names[names.length - 1];
+	}
+	
+	synchronized BasicFileAttributes attributes(final Path path) throws IOException {
+		checkOpen();
+		return new Attributes(get(path));
+	}
+	
+	synchronized void setLastModified(final Path path, final long lastModified) throws IOException {
+		checkOpen();
+		get(path).lastModified = lastModified;
+		fire(absolute(path), StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+	
+	synchronized boolean isSameFile(final Path path, final Path path2) throws IOException {
+		checkOpen();
+		return get(path) == get(path2);
+	}
+	
+	synchronized void createDirectory(final Path dir) throws IOException {
+		checkOpen();
+		final Directory parent = getParent(dir);
+		final String name = fileName(dir);
+		if (parent.children.containsKey(name))
+			throw new FileAlreadyExistsException(dir.toString());
+		parent.children.put(name, new Directory());
+		parent.lastModified = System.currentTimeMillis();
+		fire(absolute(dir), StandardWatchEventKinds.ENTRY_CREATE);
+	}
+	
+	synchronized List<Path> list(final Path dir) throws IOException {
+		checkOpen();
+		final Node n = get(dir);
+		if (!(n instanceof Directory))
+			throw new NotDirectoryException(dir.toString());
+		final List<Path> result = new ArrayList<>();
+		for (final String name : ((Directory) n).children.keySet())
+			result.add(dir.resolve(name));
+		return result;
+	}
+	
+	synchronized void delete(final Path path) throws IOException {
+		checkOpen();
+		final Directory parent = getParent(path);
+		final String name = fileName(path);
+		final Node n = parent.children.get(name);
+		if (n == null)
+			throw new NoSuchFileException(path.toString());
+		if (n instanceof Directory && !((Directory) n).children.isEmpty())
+			throw new DirectoryNotEmptyException(path.toString());
+		parent.children.remove(name);
+		parent.lastModified = System.currentTimeMillis();
+		final MemoryPath p = absolute(path);
+		fire(p, StandardWatchEventKinds.ENTRY_DELETE);
+		if (n instanceof Directory)
+			directoryGone(p);
+	}
+	
+	synchronized void copy(final Path source, final Path target, final CopyOption... options) throws IOException {
+		checkOpen();
+		final Node n = get(source);
+		final Node copy;
+		if (n instanceof Directory) { // only the directory itself, like Files.copy on other file systems
+			copy = new Directory();
+		} else {
+			final FileNode f = new FileNode();
+			f.data = Arrays.copyOf(((FileNode) n).data, ((FileNode) n).size);
+			f.size = ((FileNode) n).size;
+			copy = f;
+		}
+		if (Arrays.asList(options).contains(StandardCopyOption.COPY_ATTRIBUTES))
+			copy.lastModified = n.lastModified;
+		put(target, copy, Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING));
+	}
+	
+	synchronized void move(final Path source, final Path target, final CopyOption... options) throws IOException {
+		checkOpen();
+		final MemoryPath from = absolute(source), to = absolute(target);
+		final Node n = get(from);
+		if (from.equals(to))
+			return;
+		if (to.startsWith(from))
+			throw new FileSystemException(source.toString(), target.toString(), "Cannot move a directory into itself");
+		put(to, n, Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING));
+		final Directory parent = getParent(from);
+		parent.children.remove(fileName(from));
+		parent.lastModified = System.currentTimeMillis();
+		fire(from, StandardWatchEventKinds.ENTRY_DELETE);
+		if (n instanceof Directory)
+			directoryGone(from);
+	}
+	
+	// must be called while holding the lock
+	private void put(final Path target, final Node n, final boolean replace) throws IOException {
+		final Directory parent = getParent(target);
+		final String name = fileName(target);
+		final Node existing = parent.children.get(name);
+		final MemoryPath t = absolute(target);
+		if (existing != null) {
+			if (!replace)
+				throw new FileAlreadyExistsException(target.toString());
+			if (existing instanceof Directory && !((Directory) existing).children.isEmpty())
+				throw new DirectoryNotEmptyException(target.toString());
+			parent.children.remove(name);
+			fire(t, StandardWatchEventKinds.ENTRY_DELETE);
+			if (existing instanceof Directory)
+				directoryGone(t);
+		}
+		parent.children.put(name, n);
+		parent.lastModified = System.currentTimeMillis();
+		fire(t, StandardWatchEventKinds.ENTRY_CREATE);
+	}
+	
+	synchronized SeekableByteChannel newByteChannel(final Path path, final Set<? extends OpenOption> options) throws IOException {
+		checkOpen();
+		final boolean write = options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND);
+		final Directory parent = getParent(path);
+		final String name = fileName(path);
+		Node n = parent.children.get(name);
+		if (n != null && write && options.contains(StandardOpenOption.CREATE_NEW))
+			throw new FileAlreadyExistsException(path.toString());
+		if (n == null) {
+			if (!write || !options.contains(StandardOpenOption.CREATE) && !options.contains(StandardOpenOption.CREATE_NEW))
+				throw new NoSuchFileException(path.toString());
+			n = new FileNode();
+			parent.children.put(name, n);
+			parent.lastModified = System.currentTimeMillis();
+			fire(absolute(path), StandardWatchEventKinds.ENTRY_CREATE);
+		}
+		if (n instanceof Directory)
+			throw new FileSystemException(path.toString(), null, "Is a directory");
+		final FileNode file = (FileNode) n;
+		final Channel channel = new Channel(absolute(path), file, !write || options.contains(StandardOpenOption.READ), write, options.contains(StandardOpenOption.APPEND));
+		if (write && options.contains(StandardOpenOption.TRUNCATE_EXISTING) && file.size > 0)
+			channel.truncate(0);
+		return channel;
+	}
+	
+	private final class Channel implements SeekableByteChannel {
+		
+		private final MemoryPath path;
+		private final FileNode file;
+		private final boolean read, write, append;
+		private long position = 0;
+		private boolean modified = false;
+		private boolean open = true;
+		
+		public Channel(final MemoryPath path, final FileNode file, final boolean read, final boolean write, final boolean append) {
+			this.path = path;
+			this.file = file;
+			this.read = read;
+			this.write = write;
+			this.append = append;
+		}
+		
+		private void checkChannelOpen() throws ClosedChannelException {
+			if (!open || !MemoryFileSystem.this.open)
+				throw new ClosedChannelException();
+		}
+		
+		@Override
+		public int read(final ByteBuffer dst) throws IOException {
+			synchronized (MemoryFileSystem.this) {
+				checkChannelOpen();
+				if (!read)
+					throw new NonReadableChannelException();
+				if (position >= file.size)
+					return -1;
+				final int n = (int) Math.min(dst.remaining(), file.size - position);
+				dst.put(file.data, (int) position, n);
+				position += n;
+				return n;
+			}
+		}
+		
+		@Override
+		public int write(final ByteBuffer src) throws IOException {
+			synchronized (MemoryFileSystem.this) {
+				checkChannelOpen();
+				if (!write)
+					throw new NonWritableChannelException();
+				if (append)
+					position = file.size;
+				final int n = src.remaining();
+				final long end = position + n;
+				if (end > Integer.MAX_VALUE - 8)
+					throw new IOException("File too large: " + path);
+				if (end > file.data.length)
+					file.data = Arrays.copyOf(file.data, (int) Math.max(end, 2L * file.data.length));
+				if (position > file.size) // writing past the end leaves a gap of zeroes
+					Arrays.fill(file.data, file.size, (int) position, (byte) 0);
+				src.get(file.data, (int) position, n);
+				position = end;
+				file.size = Math.max(file.size, (int) end);
+				file.lastModified = System.currentTimeMillis();
+				modified = true;
+				return n;
+			}
+		}
+		
+		@Override
+		public long position() throws IOException {
+			synchronized (MemoryFileSystem.this) {
+				checkChannelOpen();
+				return position;
+			}
+		}
+		
+		@Override
+		public SeekableByteChannel position(final long newPosition) throws IOException {
+			if (newPosition < 0)
+				throw new IllegalArgumentException("Negative position " + newPosition);
+			synchronized (MemoryFileSystem.this) {
+				checkChannelOpen();
+				position = newPosition;
+				return this;
+			}
+		}
+		
+		@Override
+		public long size() throws IOException {
+			synchronized (MemoryFileSystem.this) {
+				checkChannelOpen();
+				return file.size;
+			}
+		}
+		
+		@Override
+		public SeekableByteChannel truncate(final long size) throws IOException {
+			if (size < 0)
+				throw new IllegalArgumentException("Negative size " + size);
+			synchronized (MemoryFileSystem.this) {
+				checkChannelOpen();
+				if (!write)
+					throw new NonWritableChannelException();
+				if (size < file.size) {
+					file.size = (int) size;
+					file.lastModified = System.currentTimeMillis();
+					modified = true;
+				}
+				position = Math.min(position, size);
+				return this;
+			}
+		}
+		
+		@Override
+		public boolean isOpen() {
+			synchronized (MemoryFileSystem.this) {
+				return open && MemoryFileSystem.this.open;
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			synchronized (MemoryFileSystem.this) {
+				if (!open)
+					return;
+				open = false;
+				if (modified && MemoryFileSystem.this.open)
+					fire(path, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+		}
+		
+	}
+	
+	// events
+	
+	// must be called while holding the lock
+	private void fire(final MemoryPath path, final Kind<Path> kind) {
+		for (final MemoryWatchService watchService : watchServices)
+			watchService.fire(path, kind);
+	}
+	
+	// must be called while holding the lock
+	private void directoryGone(final MemoryPath dir) {
+		for (final MemoryWatchService watchService : watchServices)
+			watchService.directoryGone(dir);
+	}
+	
+}
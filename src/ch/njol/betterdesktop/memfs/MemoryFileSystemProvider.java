@@ -0,0 +1,276 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package ch.njol.betterdesktop.memfs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.DirectoryStream.Filter;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Creates {@link MemoryFileSystem}s. This provider is not installed, so file systems are created with {@link #newFileSystem(String)} instead of {@link java.nio.file.FileSystems}.
+ * <p>
+ * URIs have the form {@code memory:name!/path}.
+ */
+public final class MemoryFileSystemProvider extends FileSystemProvider {
+	
+	public final static String SCHEME = "memory";
+	
+	public final static MemoryFileSystemProvider INSTANCE = new MemoryFileSystemProvider();
+	
+	private final ConcurrentHashMap<String, MemoryFileSystem> fileSystems = new ConcurrentHashMap<>();
+	
+	private MemoryFileSystemProvider() {}
+	
+	@Override
+	public String getScheme() {
+		return SCHEME;
+	}
+	
+	/**
+	 * Creates a new, empty file system.
+	 * 
+	 * @throws FileSystemAlreadyExistsException if an open file system with the given name exists already
+	 */
+	public MemoryFileSystem newFileSystem(final String name) {
+		if (name.contains("!"))
+			throw new IllegalArgumentException("Invalid file system name " + name);
+		final MemoryFileSystem fs = new MemoryFileSystem(this, name);
+		if (fileSystems.putIfAbsent(name, fs) != null)
+			throw new FileSystemAlreadyExistsException(name);
+		return fs;
+	}
+	
+	@Override
+	public MemoryFileSystem newFileSystem(final URI uri, final Map<String, ?> env) throws IOException {
+		checkUri(uri);
+		return newFileSystem(uri.getSchemeSpecificPart());
+	}
+	
+	void closed(final MemoryFileSystem fs) {
+		fileSystems.remove(fs.name, fs);
+	}
+	
+	private static void checkUri(final URI uri) {
+		if (!SCHEME.equalsIgnoreCase(uri.getScheme()))
+			throw new IllegalArgumentException("Not a " + SCHEME + " URI: " + uri);
+	}
+	
+	@Override
+	public MemoryFileSystem getFileSystem(final URI uri) {
+		checkUri(uri);
+		final String ssp = uri.getSchemeSpecificPart();
+		final int i = ssp.indexOf('!');
+		final MemoryFileSystem fs = fileSystems.get(i < 0 ? ssp : ssp.substring(0, i));
+		if (fs == null)
+			throw new FileSystemNotFoundException(uri.toString());
+		return fs;
+	}
+	
+	@Override
+	public Path getPath(final URI uri) {
+		final String ssp = uri.getSchemeSpecificPart();
+		final int i = ssp.indexOf('!');
+		if (i < 0)
+			throw new IllegalArgumentException("No path in " + uri);
+		return getFileSystem(uri).getPath(ssp.substring(i + 1));
+	}
+	
+	private static MemoryFileSystem fs(final Path path) {
+		return MemoryPath.toMemoryPath(path).getFileSystem();
+	}
+	
+	@Override
+	public SeekableByteChannel newByteChannel(final Path path, final Set<? extends OpenOption> options, final FileAttribute<?>... attrs) throws IOException {
+		return fs(path).newByteChannel(path, options);
+	}
+	
+	@Override
+	public DirectoryStream<Path> newDirectoryStream(final Path dir, final Filter<? super Path> filter) throws IOException {
+		final List<Path> entries = new ArrayList<>();
+		for (final Path p : fs(dir).list(dir)) {
+			if (filter.accept(p))
+				entries.add(p);
+		}
+		return new DirectoryStream<Path>() {
+			private boolean iterated = false;
+			
+			@Override
+			public Iterator<Path> iterator() {
+				if (iterated)
+					throw new IllegalStateException("Already iterated");
+				iterated = true;
+				return entries.iterator();
+			}
+			
+			@Override
+			public void close() {}
+		};
+	}
+	
+	@Override
+	public void createDirectory(final Path dir, final FileAttribute<?>... attrs) throws IOException {
+		fs(dir).createDirectory(dir);
+	}
+	
+	@Override
+	public void delete(final Path path) throws IOException {
+		fs(path).delete(path);
+	}
+	
+	@Override
+	public void copy(final Path source, final Path target, final CopyOption... options) throws IOException {
+		checkSameFileSystem(source, target);
+		fs(source).copy(source, target, options);
+	}
+	
+	@Override
+	public void move(final Path source, final Path target, final CopyOption... options) throws IOException {
+		checkSameFileSystem(source, target);
+		fs(source).move(source, target, options);
+	}
+	
+	private static void checkSameFileSystem(final Path source, final Path target) {
+		if (fs(source) != fs(target))
+			throw new UnsupportedOperationException("Cannot copy or move between different in-memory file systems");
+	}
+	
+	@Override
+	public boolean isSameFile(final Path path, final Path path2) throws IOException {
+		if (path.equals(path2))
+			return true;
+		if (!(path2 instanceof MemoryPath) || fs(path) != fs(path2))
+			return false;
+		return fs(path).isSameFile(path, path2);
+	}
+	
+	@Override
+	public boolean isHidden(final Path path) throws IOException {
+		final Path name = path.getFileName();
+		return name != null && name.toString().startsWith(".");
+	}
+	
+	@Override
+	public FileStore getFileStore(final Path path) throws IOException {
+		throw new UnsupportedOperationException("In-memory file systems have no file stores");
+	}
+	
+	@Override
+	public void checkAccess(final Path path, final AccessMode... modes) throws IOException {
+		fs(path).attributes(path); // everything that exists can be read and written
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <V extends FileAttributeView> @Nullable V getFileAttributeView(final Path path, final Class<V> type, final LinkOption... options) {
+		if (type != BasicFileAttributeView.class)
+			return null;
+		final MemoryFileSystem fs = fs(path);
+		return (V) new BasicFileAttributeView() {
+			@Override
+			public String name() {
+				return "basic";
+			}
+			
+			@Override
+			public BasicFileAttributes readAttributes() throws IOException {
+				return fs.attributes(path);
+			}
+			
+			@Override
+			public void setTimes(final @Nullable FileTime lastModifiedTime, final @Nullable FileTime lastAccessTime, final @Nullable FileTime createTime) throws IOException {
+				if (lastModifiedTime != null)
+					fs.setLastModified(path, lastModifiedTime.toMillis());
+			}
+		};
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <A extends BasicFileAttributes> A readAttributes(final Path path, final Class<A> type, final LinkOption... options) throws IOException {
+		if (type != BasicFileAttributes.class)
+			throw new UnsupportedOperationException("Unsupported attributes " + type.getName());
+		return (A) fs(path).attributes(path);
+	}
+	
+	@Override
+	public Map<String, Object> readAttributes(final Path path, final String attributes, final LinkOption... options) throws IOException {
+		final int i = attributes.indexOf(':');
+		if (i >= 0 && !attributes.substring(0, i).equals("basic"))
+			throw new UnsupportedOperationException("Unsupported attribute view in " + attributes);
+		final BasicFileAttributes attrs = fs(path).attributes(path);
+		final Map<String, Object> all = new HashMap<>();
+		all.put("lastModifiedTime", attrs.lastModifiedTime());
+		all.put("lastAccessTime", attrs.lastAccessTime());
+		all.put("creationTime", attrs.creationTime());
+		all.put("size", attrs.size());
+		all.put("isRegularFile", attrs.isRegularFile());
+		all.put("isDirectory", attrs.isDirectory());
+		all.put("isSymbolicLink", attrs.isSymbolicLink());
+		all.put("isOther", attrs.isOther());
+		all.put("fileKey", attrs.fileKey());
+		final String names = attributes.substring(i + 1);
+		if (names.equals("*"))
+			return all;
+		final Map<String, Object> result = new HashMap<>();
+		for (final String name : names.split(",")) {
+			if (!all.containsKey(name))
+				throw new IllegalArgumentException("Unknown attribute " + name);
+			result.put(name, all.get(name));
+		}
+		return Collections.unmodifiableMap(result);
+	}
+	
+	@Override
+	public void setAttribute(final Path path, final String attribute, final @Nullable Object value, final LinkOption... options) throws IOException {
+		final String name = attribute.startsWith("basic:") ? attribute.substring("basic:".length()) : attribute;
+		if (!name.equals("lastModifiedTime"))
+			throw new UnsupportedOperationException("Unsupported attribute " + attribute);
+		if (!(value instanceof FileTime))
+			throw new ClassCastException("lastModifiedTime must be a FileTime");
+		fs(path).setLastModified(path, ((FileTime) value).toMillis());
+	}
+	
+}
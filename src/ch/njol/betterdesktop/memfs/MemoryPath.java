@@ -0,0 +1,308 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package ch.njol.betterdesktop.memfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.WatchEvent.Modifier;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A path on a {@link MemoryFileSystem}. Paths use '/' as separator and have a single root, like Unix paths.
+ */
+final class MemoryPath implements Path {
+	
+	private final MemoryFileSystem fs;
+	private final boolean absolute;
+	private final String[] names; // empty for the root and for the empty path
+	
+	MemoryPath(final MemoryFileSystem fs, final boolean absolute, final String[] names) {
+		this.fs = fs;
+		this.absolute = absolute;
+		this.names = names;
+	}
+	
+	static MemoryPath parse(final MemoryFileSystem fs, final String path) {
+		final List<String> names = new ArrayList<>();
+		for (final String name : path.split("/")) {
+			if (name.indexOf('\0') >= 0)
+				throw new IllegalArgumentException("Invalid path: " + path);
+			if (!name.isEmpty())
+				names.add(name);
+		}
+		return new MemoryPath(fs, path.startsWith("/"), names.toArray(new String[0]));
+	}
+	
+	static MemoryPath toMemoryPath(final Path path) {
+		if (!(path instanceof MemoryPath))
+			throw new ProviderMismatchException();
+		return (MemoryPath) path;
+	}
+	
+	String[] names() {
+		return names;
+	}
+	
+	private boolean isEmpty() {
+		return !absolute && names.length == 0;
+	}
+	
+	@Override
+	public MemoryFileSystem getFileSystem() {
+		return fs;
+	}
+	
+	@Override
+	public boolean isAbsolute() {
+		return absolute;
+	}
+	
+	@Override
+	public @Nullable Path getRoot() {
+		return absolute ? fs.root : null;
+	}
+	
+	@Override
+	public @Nullable Path getFileName() {
+		if (isEmpty())
+			return this;
+		if (names.length == 0)
+			return null;
+		return new MemoryPath(fs, false, new String[] {names[names.length - 1]});
+	}
+	
+	@Override
+	public @Nullable Path getParent() {
+		if (names.length == 0 || names.length == 1 && !absolute)
+			return null;
+		return new MemoryPath(fs, absolute, Arrays.copyOf(names, names.length - 1));
+	}
+	
+	@Override
+	public int getNameCount() {
+		return isEmpty() ? 1 : names.length;
+	}
+	
+	@Override
+	public Path getName(final int index) {
+		if (isEmpty() && index == 0)
+			return this;
+		if (index < 0 || index >= names.length)
+			throw new IllegalArgumentException("Invalid name index " + index + " for " + this);
+		return new MemoryPath(fs, false, new String[] {names[index]});
+	}
+	
+	@Override
+	public Path subpath(final int beginIndex, final int endIndex) {
+		if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex)
+			throw new IllegalArgumentException("Invalid subpath " + beginIndex + "-" + endIndex + " of " + this);
+		return new MemoryPath(fs, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+	}
+	
+	@Override
+	public boolean startsWith(final Path other) {
+		if (!(other instanceof MemoryPath))
+			return false;
+		final MemoryPath o = (MemoryPath) other;
+		if (o.fs != fs || o.absolute != absolute || o.names.length > names.length)
+			return false;
+		if (o.isEmpty())
+			return isEmpty();
+		for (int i = 0; i < o.names.length; i++) {
+			if (!o.names[i].equals(names[i]))
+				return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean startsWith(final String other) {
+		return startsWith(fs.getPath(other));
+	}
+	
+	@Override
+	public boolean endsWith(final Path other) {
+		if (!(other instanceof MemoryPath))
+			return false;
+		final MemoryPath o = (MemoryPath) other;
+		if (o.fs != fs || o.absolute && !absolute || o.names.length > names.length)
+			return false;
+		if (o.absolute)
+			return equals(o);
+		if (o.isEmpty())
+			return isEmpty();
+		for (int i = 1; i <= o.names.length; i++) {
+			if (!o.names[o.names.length - i].equals(names[names.length - i]))
+				return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean endsWith(final String other) {
+		return endsWith(fs.getPath(other));
+	}
+	
+	@Override
+	public Path normalize() {
+		final List<String> result = new ArrayList<>();
+		for (final String name : names) {
+			if (name.equals("."))
+				continue;
+			if (name.equals("..") && !result.isEmpty() && !result.get(result.size() - 1).equals("..")) {
+				result.remove(result.size() - 1);
+				continue;
+			}
+			if (name.equals("..") && absolute) // the parent of the root is the root
+				continue;
+			result.add(name);
+		}
+		return result.size() == names.length ? this : new MemoryPath(fs, absolute, result.toArray(new String[0]));
+	}
+	
+	@Override
+	public Path resolve(final Path other) {
+		final MemoryPath o = toMemoryPath(other);
+		if (o.absolute)
+			return o;
+		if (o.isEmpty())
+			return this;
+		final String[] result = Arrays.copyOf(names, names.length + o.names.length);
+		System.arraycopy(o.names, 0, result, names.length, o.names.length);
+		return new MemoryPath(fs, absolute, result);
+	}
+	
+	@Override
+	public Path resolve(final String other) {
+		return resolve(fs.getPath(other));
+	}
+	
+	@Override
+	public Path resolveSibling(final Path other) {
+		final Path parent = getParent();
+		return parent == null ? other : parent.resolve(other);
+	}
+	
+	@Override
+	public Path resolveSibling(final String other) {
+		return resolveSibling(fs.getPath(other));
+	}
+	
+	@Override
+	public Path relativize(final Path other) {
+		final MemoryPath o = toMemoryPath(other);
+		if (o.absolute != absolute)
+			throw new IllegalArgumentException("Cannot relativize " + other + " against " + this);
+		int common = 0;
+		while (common < names.length && common < o.names.length && names[common].equals(o.names[common]))
+			common++;
+		final List<String> result = new ArrayList<>();
+		for (int i = common; i < names.length; i++)
+			result.add("..");
+		result.addAll(Arrays.asList(o.names).subList(common, o.names.length));
+		return new MemoryPath(fs, false, result.toArray(new String[0]));
+	}
+	
+	@Override
+	public URI toUri() {
+		try {
+			return new URI(MemoryFileSystemProvider.SCHEME, fs.name + "!" + toAbsolutePath(), null);
+		} catch (final URISyntaxException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	@Override
+	public Path toAbsolutePath() {
+		return absolute ? this : new MemoryPath(fs, true, names); // the working directory is the root
+	}
+	
+	@Override
+	public Path toRealPath(final LinkOption... options) throws IOException {
+		final MemoryPath real = (MemoryPath) toAbsolutePath().normalize();
+		fs.attributes(real); // throws if it doesn't exist
+		return real;
+	}
+	
+	@Override
+	public File toFile() {
+		throw new UnsupportedOperationException("Paths of an in-memory file system have no File");
+	}
+	
+	@Override
+	public WatchKey register(final WatchService watcher, final Kind<?>[] events, final Modifier... modifiers) throws IOException {
+		if (!(watcher instanceof MemoryWatchService))
+			throw new ProviderMismatchException();
+		return ((MemoryWatchService) watcher).register(this, events, modifiers);
+	}
+	
+	@Override
+	public WatchKey register(final WatchService watcher, final Kind<?>... events) throws IOException {
+		return register(watcher, events, new Modifier[0]);
+	}
+	
+	@Override
+	public Iterator<Path> iterator() {
+		final List<Path> result = new ArrayList<>();
+		for (int i = 0; i < getNameCount(); i++)
+			result.add(getName(i));
+		return result.iterator();
+	}
+	
+	// same order as the paths' strings, like the default file system's paths
+	@Override
+	public int compareTo(final Path other) {
+		return toString().compareTo(toMemoryPath(other).toString());
+	}
+	
+	@Override
+	public boolean equals(final @Nullable Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof MemoryPath))
+			return false;
+		final MemoryPath other = (MemoryPath) obj;
+		return other.fs == fs && other.absolute == absolute && Arrays.equals(other.names, names);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(names) * 2 + (absolute ? 1 : 0);
+	}
+	
+	@Override
+	public String toString() {
+		return (absolute ? "/" : "") + String.join("/", names);
+	}
+	
+}
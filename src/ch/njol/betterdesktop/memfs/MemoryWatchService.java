@@ -0,0 +1,285 @@
+/*
+This file is part of Motunautr, an alternative to the default Windows desktop and start menu.
+Copyright (C) 2017 Peter Güttinger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package ch.njol.betterdesktop.memfs;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.WatchEvent.Modifier;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.sun.nio.file.ExtendedWatchEventModifier;
+import com.sun.nio.file.SensitivityWatchEventModifier;
+
+/**
+ * The watch service of a {@link MemoryFileSystem}. Events are queued when the change is made, so they are never late and are only lost if a key overflows.
+ */
+final class MemoryWatchService implements WatchService {
+	
+	/**
+	 * How many events a key queues before it overflows, the same as the default file system's watch services
+	 */
+	final static int MAX_EVENTS = 512;
+	
+	private final static class Event<T> implements WatchEvent<T> {
+		private final Kind<T> kind;
+		private final @Nullable T context;
+		private int count = 1;
+		
+		public Event(final Kind<T> kind, final @Nullable T context) {
+			this.kind = kind;
+			this.context = context;
+		}
+		
+		@Override
+		public Kind<T> kind() {
+			return kind;
+		}
+		
+		@Override
+		public int count() {
+			return count;
+		}
+		
+		@Override
+		public @Nullable T context() {
+			return context;
+		}
+		
+		@Override
+		public String toString() {
+			return kind + " " + context + (count > 1 ? " (" + count + "x)" : "");
+		}
+	}
+	
+	private final class Key implements WatchKey {
+		
+		private final MemoryPath dir;
+		private volatile Set<Kind<?>> kinds;
+		private volatile boolean fileTree;
+		private volatile boolean valid = true;
+		
+		// guarded by this key
+		private List<WatchEvent<?>> events = new ArrayList<>();
+		private boolean signalled = false;
+		
+		public Key(final MemoryPath dir, final Set<Kind<?>> kinds, final boolean fileTree) {
+			this.dir = dir;
+			this.kinds = kinds;
+			this.fileTree = fileTree;
+		}
+		
+		synchronized void add(final Kind<Path> kind, final Path context) {
+			if (!valid || !kinds.contains(kind))
+				return;
+			final WatchEvent<?> last = events.isEmpty() ? null : events.get(events.size() - 1);
+			if (last != null && last.kind() == StandardWatchEventKinds.OVERFLOW) {
+				((Event<?>) last).count++;
+			} else if (events.size() >= MAX_EVENTS) {
+				events.add(new Event<>(StandardWatchEventKinds.OVERFLOW, null));
+			} else if (last != null && kind == StandardWatchEventKinds.ENTRY_MODIFY && last.kind() == kind && context.equals(last.context())) {
+				((Event<?>) last).count++; // repeated modifications are merged, like by the default file system's watch services
+			} else {
+				events.add(new Event<>(kind, context));
+			}
+			signal();
+		}
+		
+		// must be called while holding the lock on this key
+		private void signal() {
+			if (signalled)
+				return;
+			signalled = true;
+			queue.add(this);
+		}
+		
+		synchronized void invalidate() {
+			valid = false;
+			signal(); // so that the owner finds out when it resets the key
+		}
+		
+		@Override
+		public boolean isValid() {
+			return valid && !closed;
+		}
+		
+		@Override
+		public synchronized List<WatchEvent<?>> pollEvents() {
+			final List<WatchEvent<?>> result = events;
+			events = new ArrayList<>();
+			return result;
+		}
+		
+		@Override
+		public synchronized boolean reset() {
+			if (!isValid())
+				return false;
+			signalled = false;
+			if (!events.isEmpty())
+				signal();
+			return true;
+		}
+		
+		@Override
+		public void cancel() {
+			valid = false;
+			keys.remove(dir, this);
+		}
+		
+		@Override
+		public Path watchable() {
+			return dir;
+		}
+		
+	}
+	
+	private final MemoryFileSystem fs;
+	private final Map<MemoryPath, Key> keys = new ConcurrentHashMap<>();
+	private final LinkedBlockingQueue<WatchKey> queue = new LinkedBlockingQueue<>();
+	private volatile boolean closed = false;
+	
+	/**
+	 * Queued when this service is closed to wake up threads waiting for a key
+	 */
+	private final WatchKey closedKey;
+	
+	MemoryWatchService(final MemoryFileSystem fs) {
+		this.fs = fs;
+		closedKey = new Key(fs.root, new HashSet<>(), false);
+	}
+	
+	WatchKey register(final MemoryPath path, final Kind<?>[] events, final Modifier... modifiers) throws IOException {
+		if (closed)
+			throw new ClosedWatchServiceException();
+		final MemoryPath dir = (MemoryPath) path.toAbsolutePath().normalize();
+		if (!fs.attributes(dir).isDirectory())
+			throw new NotDirectoryException(path.toString());
+		final Set<Kind<?>> kinds = new HashSet<>();
+		for (final Kind<?> kind : events) {
+			if (kind != StandardWatchEventKinds.ENTRY_CREATE && kind != StandardWatchEventKinds.ENTRY_DELETE && kind != StandardWatchEventKinds.ENTRY_MODIFY
+					&& kind != StandardWatchEventKinds.OVERFLOW)
+				throw new UnsupportedOperationException("Unsupported event kind " + kind);
+			kinds.add(kind);
+		}
+		boolean fileTree = false;
+		for (final Modifier modifier : modifiers) {
+			if (modifier == ExtendedWatchEventModifier.FILE_TREE)
+				fileTree = true;
+			else if (!(modifier instanceof SensitivityWatchEventModifier)) // changes are always reported immediately
+				throw new UnsupportedOperationException("Unsupported modifier " + modifier);
+		}
+		synchronized (fs) { // not concurrently with events or with the directory being deleted
+			final Key existing = keys.get(dir);
+			if (existing != null && existing.valid) {
+				existing.kinds = kinds;
+				existing.fileTree = fileTree;
+				return existing;
+			}
+			final Key key = new Key(dir, kinds, fileTree);
+			keys.put(dir, key);
+			return key;
+		}
+	}
+	
+	// called while holding the lock on the file system
+	void fire(final MemoryPath path, final Kind<Path> kind) {
+		if (closed || keys.isEmpty())
+			return;
+		final Path parent = path.getParent();
+		if (parent == null)
+			return;
+		// the key of the parent, and the keys of all other ancestors that watch their whole tree
+		for (Path dir = parent; dir != null; dir = dir.getParent()) {
+			final Key key = keys.get(dir);
+			if (key != null && (dir == parent || key.fileTree))
+				key.add(kind, dir.relativize(path));
+		}
+	}
+	
+	// called while holding the lock on the file system
+	void directoryGone(final MemoryPath dir) {
+		for (final Iterator<Key> iter = keys.values().iterator(); iter.hasNext();) {
+			final Key key = iter.next();
+			if (key.dir.startsWith(dir)) {
+				iter.remove();
+				key.invalidate();
+			}
+		}
+	}
+	
+	private void checkClosed() {
+		if (closed)
+			throw new ClosedWatchServiceException();
+	}
+	
+	private @Nullable WatchKey checkClosed(final @Nullable WatchKey key) {
+		if (key == closedKey)
+			queue.add(closedKey); // for other waiting threads
+		checkClosed();
+		return key;
+	}
+	
+	@Override
+	public @Nullable WatchKey poll() {
+		checkClosed();
+		return checkClosed(queue.poll());
+	}
+	
+	@Override
+	public @Nullable WatchKey poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		checkClosed();
+		return checkClosed(queue.poll(timeout, unit));
+	}
+	
+	@Override
+	public WatchKey take() throws InterruptedException {
+		checkClosed();
+		final WatchKey key = queue.take();
+		checkClosed(key);
+		return key;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		keys.clear();
+		queue.add(closedKey);
+		fs.watchServiceClosed(this);
+	}
+	
+}
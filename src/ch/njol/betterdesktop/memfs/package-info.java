@@ -0,0 +1,7 @@
+/**
+ * An in-memory file system with a watch service, e.g. to run benchmarks without touching the disk.
+ */
+@org.eclipse.jdt.annotation.NonNullByDefault({PARAMETER, RETURN_TYPE, FIELD, TYPE_BOUND, TYPE_ARGUMENT, ARRAY_CONTENTS})
+package ch.njol.betterdesktop.memfs;
+
+import static org.eclipse.jdt.annotation.DefaultLocation.*;